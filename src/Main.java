@@ -2,7 +2,36 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
 
 /**
  * A class Position that represents a position in a 2D grid. The class has two fields, x and y, that represent the x and y coordinates of the position.
@@ -120,622 +149,5534 @@ class Position {
 }
 
 /**
- * A class that represents a grid. The class has a field that represents the grid as a 2D array of Position.
- * The class has a field <b>rock</b> that represents the position of the rock.
- * The class has a field <b>tortuga</b> that represents the positions of the tortuga.
+ * A heuristic estimates the cost of the remaining path from a cell to the goal. The A* algorithm takes it as a parameter.
+ * Moves are 8-directional, so an admissible heuristic must not overestimate the number of diagonal steps.
  */
-class Map {
-    Position[][] map = new Position[9][9];
-    Position rock;
-    Position tortuga;
+interface Heuristic {
+    /**
+     * @param x     - represents the x coordinate of the cell
+     * @param y     - represents the y coordinate of the cell
+     * @param goalX - represents the x coordinate of the goal
+     * @param goalY - represents the y coordinate of the goal
+     * @return - a lower bound of the cost to reach the goal from the cell
+     */
+    int estimate(int x, int y, int goalX, int goalY);
 
     /**
-     * Constructor for the Map class.
+     * The Kraken may be killed on the way from the tortuga, so the cells of its zone become free during the search.
+     * A heuristic that depends on the cells must be computed on the map without the Krakens for such searches.
+     *
+     * @return - the heuristic that does not overestimate when the Krakens are killed
      */
-    public Map() {
-        for (int i = 0; i < 9; i++) {
-            for (int j = 0; j < 9; j++) {
-                map[j][i] = new Position(i, j);
-            }
-        }
+    default Heuristic withKrakenKilled() {
+        return this;
     }
 
     /**
-     * This function adds the agent to the map.
+     * An overlay reads the cells of its base map but may change any of them, so a heuristic that depends on the cells of the base map
+     * may overestimate on it. The overlays take the heuristic of their base map through this method.
      *
-     * @param i        - represents the agent type
-     * @param position - represents the position of the agent on the map
+     * @return - the heuristic that does not overestimate on any overlay of the map
      */
-    public void addAgent(int i, Position position) {
-        map[position.getY()][position.getX()].setAgent(i);
-        // If the agent it dangerous (Davy Jones or Tortuga) then we also should consider their perception zones.
-        if (i == 2) {
-            ArrayList<Position> perceptionZone = getMooreNeighbors(position);
-            for (Position perception : perceptionZone) {
-                perception.setAgent(-1);
-            }
-        } else if (i == 3) {
-
-            ArrayList<Position> perceptionZone = getVonNeumannNeighbors(position);
+    default Heuristic withCellsChanged() {
+        return this;
+    }
+}
 
-            for (Position perception : perceptionZone) {
-                perception.setAgent(-1);
-            }
+/**
+ * Chebyshev distance. It is the exact distance on an empty map when all 8 moves cost the same.
+ */
+class ChebyshevHeuristic implements Heuristic {
+    @Override
+    public int estimate(int x, int y, int goalX, int goalY) {
+        return Math.max(Math.abs(x - goalX), Math.abs(y - goalY));
+    }
 
-        }
+    @Override
+    public String toString() {
+        return "Chebyshev";
     }
+}
+
+/**
+ * Octile distance. Straight and diagonal moves may have different costs, if both costs are equal it is the same as Chebyshev.
+ */
+class OctileHeuristic implements Heuristic {
+    private final int straightCost;
+    private final int diagonalCost;
 
     /**
-     * This function adds the rock to the map.
-     *
-     * @param position - represents the position of the rock on the map
+     * Constructor for the unit cost moves.
      */
-    public void addRock(Position position) {
-        if (map[position.getY()][position.getX()].getAgent() == 0) {
-            map[position.getY()][position.getX()].setAgent(4);
-        }
-        rock = position;
+    public OctileHeuristic() {
+        this(1, 1);
     }
 
     /**
-     * This function adds the tortuga to the map.
+     * Constructor for the OctileHeuristic class.
      *
-     * @param position - represents the position of the tortuga on the map
+     * @param straightCost - represents the cost of a horizontal or vertical move
+     * @param diagonalCost - represents the cost of a diagonal move
      */
-    public void addTortuga(Position position) {
-        if (map[position.getY()][position.getX()].getAgent() == 0) {
-            map[position.getY()][position.getX()].setAgent(6);
-        }
-        tortuga = position;
+    public OctileHeuristic(int straightCost, int diagonalCost) {
+        this.straightCost = straightCost;
+        this.diagonalCost = diagonalCost;
+    }
+
+    @Override
+    public int estimate(int x, int y, int goalX, int goalY) {
+        int dx = Math.abs(x - goalX);
+        int dy = Math.abs(y - goalY);
+        return straightCost * Math.max(dx, dy) + (diagonalCost - straightCost) * Math.min(dx, dy);
+    }
+
+    @Override
+    public String toString() {
+        return "Octile";
+    }
+}
+
+/**
+ * Zero heuristic. A* with it is the Dijkstra algorithm.
+ */
+class ZeroHeuristic implements Heuristic {
+    @Override
+    public int estimate(int x, int y, int goalX, int goalY) {
+        return 0;
     }
 
+    @Override
+    public String toString() {
+        return "Zero";
+    }
+}
+
+/**
+ * Table-driven heuristic. A table stores the distance from every cell to one goal. It is built by breadth-first search
+ * from the goal the first time the goal is asked for, so A* expands only the cells of a shortest path.
+ * The tables are valid only while the map is not changed. The searches from the tortuga use the tables of the map without the Krakens.
+ */
+class TableHeuristic implements Heuristic {
     /**
-     * Utility function to check if the given position is valid.
+     * The value for cells from which the goal is not reachable.
+     */
+    public static final int UNREACHABLE = Integer.MAX_VALUE / 4;
+
+    private final Map map;
+    /**
+     * The searches of the anytime planner may use the heuristic from other threads, so the tables are kept in a concurrent map.
+     */
+    private final ConcurrentHashMap<Integer, int[][]> tables = new ConcurrentHashMap<>();
+    /**
+     * The tables of the map without the Krakens, created on the first search from the tortuga.
+     */
+    private TableHeuristic killed;
+
+    /**
+     * Constructor for the TableHeuristic class.
      *
-     * @param x - represents the x coordinate of the position
-     * @param y - represents the y coordinate of the position
-     * @return - true if the position is valid, false otherwise
+     * @param map - represents the map the distances are computed on
      */
-    public boolean isPositionValid(int x, int y) {
-        return x >= 0 && x <= 8 && y >= 0 && y <= 8;
+    public TableHeuristic(Map map) {
+        this.map = map;
     }
 
     /**
-     * Utility function to get the Moore neighbors of the given position.
+     * Computes the distances to the goal over the cells that A* is allowed to visit.
      *
-     * @param position - represents the given position
-     * @return - returns an ArrayList of Moore neighbors
+     * @param map   - represents the map
+     * @param goalX - represents the x coordinate of the goal
+     * @param goalY - represents the y coordinate of the goal
+     * @return - the distances to the goal, table[y][x]
      */
-    public ArrayList<Position> getMooreNeighbors(Position position) {
-        ArrayList<Position> neighbors = new ArrayList<>();
-        for (int i = -1; i <= 1; i++) {
-            for (int j = -1; j <= 1; j++) {
-                if (i == 0 && j == 0) continue;
-                if (isPositionValid(position.getX() + i, position.getY() + j)) {
-                    neighbors.add(map[position.getY() + j][position.getX() + i]);
+    public static int[][] distancesTo(Map map, int goalX, int goalY) {
+        int[][] table = new int[map.height][map.width];
+        for (int[] row : table) {
+            Arrays.fill(row, UNREACHABLE);
+        }
+        ArrayDeque<Position> queue = new ArrayDeque<>();
+        table[goalY][goalX] = 0;
+        queue.add(new Position(goalX, goalY));
+        while (!queue.isEmpty()) {
+            Position current = queue.poll();
+            for (Position neighbor : map.getMooreNeighbors(current)) {
+                if (table[neighbor.getY()][neighbor.getX()] != UNREACHABLE || !map.isPassable(neighbor)) {
+                    continue;
                 }
-
+                table[neighbor.getY()][neighbor.getX()] = table[current.getY()][current.getX()] + 1;
+                queue.add(neighbor);
             }
         }
-        return neighbors;
+        return table;
+    }
+
+    @Override
+    public int estimate(int x, int y, int goalX, int goalY) {
+        int[][] table = tables.computeIfAbsent(goalY * map.width + goalX, key -> distancesTo(map, goalX, goalY));
+        return table[y][x];
+    }
+
+    @Override
+    public synchronized Heuristic withKrakenKilled() {
+        if (killed == null) {
+            Map killedMap = map.killKrakens();
+            killed = killedMap == map ? this : new TableHeuristic(killedMap);
+        }
+        return killed;
     }
 
+    @Override
+    public Heuristic withCellsChanged() {
+        // The tables are built lazily and the overlay may still be changed after it is created, so they are not built on the overlay
+        return new ChebyshevHeuristic();
+    }
+
+    @Override
+    public String toString() {
+        return "Table";
+    }
+}
+
+/**
+ * The ALT heuristic: A*, landmarks and the triangle inequality. The costs from k landmarks to every cell and from every cell to the landmarks
+ * are computed once, then for any cell and goal the cost between them is at least d(L, goal) - d(L, cell) and d(cell, L) - d(goal, L) for every landmark L.
+ * The landmarks are picked one by one in the largest connected component, each as far as possible from the landmarks picked before,
+ * so they lie at the edges of the map behind the obstacles, where the bounds are the tightest. The costs are valid only while the map is not changed,
+ * so the searches from the tortuga, where the Kraken is killed, and the overlays use the Chebyshev distance instead.
+ * The heuristic is not changed by the estimates, one instance can be used by several searches at the same time.
+ */
+class LandmarkHeuristic implements Heuristic {
+    private static final int UNREACHABLE = Integer.MAX_VALUE / 4;
+
+    private final Map map;
+    private final ArrayList<Position> landmarks = new ArrayList<>();
+    private final int[][] costsFrom;
+    private final int[][] costsTo;
+    private final Heuristic base = new ChebyshevHeuristic();
+    private final long preprocessingTime;
+
     /**
-     * Utility function to get the Von Neumann neighbors of the given position.
+     * Constructor for the LandmarkHeuristic class.
      *
-     * @param position - represents the given position
-     * @return - returns an ArrayList of Von Neumann neighbors
+     * @param map       - represents the map, it must not be changed while the heuristic is used
+     * @param landmarks - represents the number of landmarks
+     * @param random    - represents the source of randomness for the cell the first landmark is picked from
+     * @throws IllegalArgumentException - if the map has no passable cell
      */
-    public ArrayList<Position> getVonNeumannNeighbors(Position position) {
-        ArrayList<Position> neighbors = new ArrayList<>();
-        for (int i = -1; i <= 1; i++) {
-            for (int j = -1; j <= 1; j++) {
-                if (i == 0 && j == 0) continue;
-                if (i != 0 && j != 0) continue;
-                if (isPositionValid(position.getX() + i, position.getY() + j)) {
-                    neighbors.add(map[position.getY() + j][position.getX() + i]);
+    public LandmarkHeuristic(Map map, int landmarks, Random random) {
+        long startTime = System.nanoTime();
+        this.map = map;
+        costsFrom = new int[landmarks][];
+        costsTo = new int[landmarks][];
+        ReachabilityIndex reachability = map.getReachability();
+        int[] sizes = new int[map.width * map.height];
+        int largest = 0;
+        for (int y = 0; y < map.height; y++) {
+            for (int x = 0; x < map.width; x++) {
+                int component = reachability.getComponent(x, y);
+                if (component >= 0 && ++sizes[component] > sizes[largest]) {
+                    largest = component;
                 }
-
             }
         }
-        return neighbors;
+        if (sizes[largest] == 0) {
+            throw new IllegalArgumentException("The map has no passable cell for the landmarks");
+        }
+        // A random cell of the largest component, found by counting its cells, so it takes one pass whatever the size of the component
+        int seed = -1;
+        for (int skip = random.nextInt(sizes[largest]); skip >= 0; ) {
+            seed++;
+            if (reachability.getComponent(seed % map.width, seed / map.width) == largest) {
+                skip--;
+            }
+        }
+        // The costs to the nearest landmark, the next landmark is the cell where they are the highest
+        int[] nearest = search(seed, true);
+        for (int i = 0; i < landmarks; i++) {
+            int landmark = farthest(nearest);
+            this.landmarks.add(new Position(landmark % map.width, landmark / map.width));
+            costsFrom[i] = search(landmark, true);
+            costsTo[i] = search(landmark, false);
+            if (i == 0) {
+                nearest = costsFrom[0].clone();
+            }
+            for (int cell = 0; cell < nearest.length; cell++) {
+                nearest[cell] = Math.min(nearest[cell], costsFrom[i][cell]);
+            }
+        }
+        preprocessingTime = System.nanoTime() - startTime;
     }
 
     /**
-     * A function that writes the solution and corresponding statistics to a file.
-     *
-     * @param writer      - represents the writer that writes to the file
-     * @param solution    - represents the solution
-     * @param elapsedTime - represents the time it took to find the solution
-     * @throws IOException - throws an exception if the file is not found
+     * @return - the passable cell with the highest finite cost
      */
-    public void representSolution(FileWriter writer, ArrayList<Position> solution, long elapsedTime) throws IOException {
-        writer.write((solution.size() - 1) + "\n");
-        for (Position position : solution) {
-            writer.write("[" + position.getX() + "," + position.getY() + "] ");
-        }
-        writer.write("\n");
-        writer.write("-------------------\n");
-        writer.write("  0 1 2 3 4 5 6 7 8\n");
-        for (int i = 0; i < 9; i++) {
-            writer.write(i + "");
-            for (int j = 0; j < 9; j++) {
-                if (solution.contains(map[j][i])) {
-                    writer.write(" *");
-                } else {
-                    writer.write(" -");
-                }
+    private int farthest(int[] costs) {
+        int best = -1;
+        for (int cell = 0; cell < costs.length; cell++) {
+            if (costs[cell] < UNREACHABLE && (best == -1 || costs[cell] > costs[best]) && map.isPassable(cell % map.width, cell / map.width)) {
+                best = cell;
             }
-            writer.write("\n");
         }
-        writer.write("-------------------\n");
-        float time = (float) Math.round(elapsedTime * 100 / 1000000.0f) / 100;
-        writer.write(time + " ms\n");
-
-
+        return best;
     }
 
     /**
-     * A function that initializes AStar algorithm and finds the solution or combine them in case of killing the Kraken.
+     * Dijkstra's algorithm from the landmark to all cells or from all cells to the landmark.
+     * Jack can enter a blocked cell only as the goal, so the blocked cells get a cost from the landmark but are not left,
+     * and any cell, even a blocked one, can be left towards the landmark.
+     *
+     * @param landmark - represents the cell of the landmark
+     * @param forward  - represents whether the costs are from the landmark to the cells
+     * @return - the cost of every cell, UNREACHABLE if there is no path
      */
-    public void aStarInit() {
-        // Try to reach the chest without visiting the tortuga and killing the kraken
-        // If the chest is not reachable, try to reach the tortuga and then kill the kraken
-        Position jack = null;
-        Position chest = null;
-        for (int i = 0; i < 9; i++) {
-            for (int j = 0; j < 9; j++) {
-                if (map[i][j].getAgent() == 1) {
-                    jack = new Position(j, i);
-                }
-                if (map[i][j].getAgent() == 5) {
-                    chest = new Position(j, i);
+    private int[] search(int landmark, boolean forward) {
+        int width = map.width;
+        int[] costs = new int[width * map.height];
+        Arrays.fill(costs, UNREACHABLE);
+        boolean[] closed = new boolean[costs.length];
+        costs[landmark] = 0;
+        BucketQueue open = new BucketQueue();
+        open.add(0, 0, landmark);
+        int cell;
+        while ((cell = open.poll()) >= 0) {
+            if (closed[cell]) {
+                continue;
+            }
+            closed[cell] = true;
+            boolean passable = map.isPassable(cell % width, cell / width);
+            if (forward && !passable && cell != landmark || !forward && !passable) {
+                // A blocked cell is only entered as the goal, nothing can be entered after it
+                continue;
+            }
+            for (int i = -1; i <= 1; i++) {
+                for (int j = -1; j <= 1; j++) {
+                    int x = cell % width + i;
+                    int y = cell / width + j;
+                    if (i == 0 && j == 0 || !map.isPositionValid(x, y)) continue;
+                    int next = y * width + x;
+                    if (closed[next]) {
+                        continue;
+                    }
+                    // Forward the move enters the next cell, backward it enters the current cell
+                    int cost = costs[cell] + (forward ? map.getMoveCost(x, y) : map.getMoveCost(cell % width, cell / width));
+                    if (cost < costs[next]) {
+                        costs[next] = cost;
+                        open.add(cost, cost, next);
+                    }
                 }
             }
         }
-        long startTime = System.nanoTime();
-        ArrayList<Position> solution = aStar(jack, chest);
-        long elapsedTime = System.nanoTime() - startTime;
-        if (solution != null) {
-            //Solution without killing the kraken exists
-            solution.add(jack);
-            Collections.reverse(solution);
-            try {
-                File outputFile = new File("outputAStar.txt");
-                outputFile.createNewFile();
-                FileWriter writer = new FileWriter("outputAStar.txt");
-                writer.write("Win\n");
-                representSolution(writer, solution, elapsedTime);
+        return costs;
+    }
 
-                writer.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    @Override
+    public int estimate(int x, int y, int goalX, int goalY) {
+        int cell = y * map.width + x;
+        int goal = goalY * map.width + goalX;
+        boolean goalPassable = map.isPassable(goalX, goalY);
+        int estimate = base.estimate(x, y, goalX, goalY);
+        for (int i = 0; i < costsFrom.length; i++) {
+            int[] from = costsFrom[i];
+            if (from[goal] < UNREACHABLE && from[cell] < UNREACHABLE) {
+                estimate = Math.max(estimate, from[goal] - from[cell]);
             }
-
-        } else {
-            startTime = System.nanoTime();
-            // Now try to reach the tortuga
-            ArrayList<Position> solution1 = aStar(jack, tortuga);
-            // Now try to kill the kraken
-            ArrayList<Position> solution2 = aStar(tortuga, chest);
-            if (solution1 == null || solution2 == null) {
-                // No solution
-                try {
-                    File outputFile = new File("outputAStar.txt");
-                    outputFile.createNewFile();
-                    FileWriter writer = new FileWriter("outputAStar.txt");
-                    writer.write("Lose\n");
-                    writer.close();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            } else {
-                solution1.add(jack);
-                Collections.reverse(solution1);
-                elapsedTime = System.nanoTime() - startTime;
-                Collections.reverse(solution2);
-                solution1.addAll(solution2);
-                try {
-                    File outputFile = new File("outputAStar.txt");
-                    outputFile.createNewFile();
-                    FileWriter writer = new FileWriter("outputAStar.txt");
-                    writer.write("Win\n");
-                    representSolution(writer, solution1, elapsedTime);
-
-                    writer.close();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
+            // A path through a blocked goal does not go on to the landmark
+            int[] to = costsTo[i];
+            if (goalPassable && to[cell] < UNREACHABLE && to[goal] < UNREACHABLE) {
+                estimate = Math.max(estimate, to[cell] - to[goal]);
             }
+        }
+        return estimate;
+    }
 
+    @Override
+    public Heuristic withKrakenKilled() {
+        // The costs were computed with the Kraken alive, the cells of its zone may be crossed after the kill
+        return base;
+    }
 
-        }
+    @Override
+    public Heuristic withCellsChanged() {
+        return base;
+    }
+
+    public ArrayList<Position> getLandmarks() {
+        return landmarks;
     }
 
     /**
-     * A* Algorithm. A Position contains a cost to reach it, a cost to reach the goal and a parent Position.
+     * @return - the time of picking the landmarks and computing the costs in nanoseconds
      */
-    public ArrayList<Position> aStar(Position start, Position goal) {
-        PriorityQueue<Position> open = new PriorityQueue<>(81, Comparator.comparingInt(Position::getF));
-        ArrayList<Position> closedList = new ArrayList<>();
-        open.add(start);
-        start.setF(0);
-        while (!open.isEmpty()) {
-            Position current = open.poll();
-            for (Position neighbor : getMooreNeighbors(current)) {
-                if (neighbor.equals(goal)) {
-                    neighbor.setParent(current);
-                    return reconstructPath(neighbor);
-                }
-                if (start.equals(tortuga) && neighbor.getAgent() == 3 && !neighbor.equals(rock)) {
-                    // We killed the kraken
-                    neighbor.setAgent(0);
-                    for (Position danger : getMooreNeighbors(neighbor)) {
-                        danger.setAgent(0);
-                    }
-                }
-                if (neighbor.getAgent() != -1 && neighbor.getAgent() != 4 && neighbor.getAgent() != 2 && neighbor.getAgent() != 3) {
-                    if (!open.contains(neighbor)) {
-                        neighbor.setG(current.getG() + 1);
-                        neighbor.setH(Math.abs(neighbor.getX() - goal.getX()) + Math.abs(neighbor.getY() - goal.getY()));
-                        neighbor.setF(neighbor.getG() + neighbor.getH());
-                        if (!closedList.contains(neighbor)) {
-                            neighbor.setParent(current);
-                            open.add(neighbor);
-                        }
-                    } else {
-                        if (current.getF() + 1 < neighbor.getF()) {
-                            neighbor.setG(current.getG() + 1);
-                            neighbor.setH(Math.abs(neighbor.getX() - goal.getX()) + Math.abs(neighbor.getY() - goal.getY()));
-                            neighbor.setF(neighbor.getG() + neighbor.getH());
-                            neighbor.setParent(current);
-                        }
-                    }
-                }
-
-            }
-            closedList.add(current);
+    public long getPreprocessingTime() {
+        return preprocessingTime;
+    }
 
-        }
+    /**
+     * @return - the size of the tables of the costs in bytes
+     */
+    public long getMemory() {
+        return 2L * costsFrom.length * map.width * map.height * Integer.BYTES;
+    }
 
-        return null;
+    @Override
+    public String toString() {
+        return "ALT-" + costsFrom.length;
     }
+}
+
+/**
+ * Weighted heuristic for the weighted A*. The estimate of the base heuristic is multiplied by the weight,
+ * so the search expands fewer positions and the path it finds is at most weight times longer than the shortest one.
+ */
+class WeightedHeuristic implements Heuristic {
+    private final Heuristic base;
+    private final double weight;
 
     /**
-     * Reconstructs the path from the goal to the start.
+     * Constructor for the WeightedHeuristic class.
      *
-     * @param goal The goal Position
-     * @return The path from the goal to the start
+     * @param base   - represents the admissible heuristic
+     * @param weight - represents the weight, not less than 1
      */
-    public ArrayList<Position> reconstructPath(Position goal) {
-        ArrayList<Position> path = new ArrayList<>();
-        Position current = goal;
-        while (current.getParent() != null) {
-            path.add(current);
-            current = current.getParent();
-        }
-        return path;
+    public WeightedHeuristic(Heuristic base, double weight) {
+        this.base = base;
+        this.weight = weight;
     }
 
-    /**
-     * A function that initializes the backtracking algorithm and finds the solution or combine them in case of killing the Kraken.
-     */
-    public void backtrackInit() {
-        Position jack = null;
-        Position chest = null;
-        for (int i = 0; i < 9; i++) {
-            for (int j = 0; j < 9; j++) {
-                if (map[i][j].getAgent() == 1) {
-                    jack = new Position(j, i);
-                }
-                if (map[i][j].getAgent() == 5) {
-                    chest = new Position(j, i);
-                }
-            }
-        }
-        long startTime = System.nanoTime();
-        ArrayList<Position> solution = backtrackingSearch(jack, chest);
-        long elapsedTime = System.nanoTime() - startTime;
-        if (solution != null && solution.get(solution.size() - 1) != null && solution.get(solution.size() - 1).equals(chest)) {
-            try {
-                File outputFile = new File("outputBacktracking.txt");
-                outputFile.createNewFile();
-                FileWriter writer = new FileWriter("outputBacktracking.txt");
-                writer.write("Win\n");
-                representSolution(writer, solution, elapsedTime);
+    @Override
+    public int estimate(int x, int y, int goalX, int goalY) {
+        // Rounding down keeps the bound of the suboptimality, the limit keeps f from overflowing
+        return (int) Math.min(weight * base.estimate(x, y, goalX, goalY), TableHeuristic.UNREACHABLE);
+    }
 
-                writer.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+    @Override
+    public Heuristic withKrakenKilled() {
+        Heuristic killed = base.withKrakenKilled();
+        return killed == base ? this : new WeightedHeuristic(killed, weight);
+    }
 
-        } else {
-            try {
-                File outputFile = new File("outputBacktracking.txt");
-                outputFile.createNewFile();
-                FileWriter writer = new FileWriter("outputBacktracking.txt");
-                writer.write("Lose\n");
-                writer.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
+    @Override
+    public Heuristic withCellsChanged() {
+        Heuristic changed = base.withCellsChanged();
+        return changed == base ? this : new WeightedHeuristic(changed, weight);
     }
 
+    public double getWeight() {
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return base + "*" + weight;
+    }
+}
+
+/**
+ * The open list of A*. It holds cells with their keys and gives back the cell with the lowest key.
+ * The same cell may be added several times with different keys, the search skips the copies it does not need.
+ */
+interface OpenList {
     /**
-     * Backtracking search.
-     * Move towards the goal, if a position which is less successful is reached - stop and move back up the tree.
-     *
-     * @return The solution or null if there is no solution.
+     * @param f    - represents the key of the cell, not negative
+     * @param g    - represents the cost to reach the cell, used to break the ties
+     * @param cell - represents the index of the cell
      */
-    public ArrayList<Position> backtrackingSearch(Position start, Position goal) {
-        ArrayList<Position> path = new ArrayList<>();
-        path.add(start);
+    void add(int f, int g, int cell);
+
+    /**
+     * @return - the cell with the lowest key, or -1 if the list is empty
+     */
+    int poll();
+}
+
+/**
+ * Binary heap of cells. The cells with equal f are taken in order of higher g.
+ */
+class BinaryHeap implements OpenList {
+    private long[] keys = new long[64];
+    private int[] cells = new int[64];
+    private int size;
+
+    @Override
+    public void add(int f, int g, int cell) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            cells = Arrays.copyOf(cells, size * 2);
+        }
+        // The higher g, the lower the key
+        long key = (long) f << 32 | (Integer.MAX_VALUE - g);
+        int i = size++;
+        while (i > 0 && keys[(i - 1) / 2] > key) {
+            keys[i] = keys[(i - 1) / 2];
+            cells[i] = cells[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        keys[i] = key;
+        cells[i] = cell;
+    }
+
+    @Override
+    public int poll() {
+        if (size == 0) {
+            return -1;
+        }
+        int result = cells[0];
+        long key = keys[--size];
+        int cell = cells[size];
+        int i = 0;
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child++;
+            }
+            if (keys[child] >= key) {
+                break;
+            }
+            keys[i] = keys[child];
+            cells[i] = cells[child];
+            i = child;
+        }
+        keys[i] = key;
+        cells[i] = cell;
+        return result;
+    }
+
+    /**
+     * @return - the lowest f in the heap, the heap must not be empty
+     */
+    public int peekF() {
+        return (int) (keys[0] >>> 32);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
+
+/**
+ * Bucket queue (Dial's algorithm). There is a bucket for every key in a window above the lowest key, so adding a cell
+ * and taking the next one cost O(1) as long as the keys grow slowly, which is the case for A* with small move costs.
+ * The cells with equal keys are taken in the reverse order, the last added cell is usually the deepest one.
+ * The keys that do not fit into the window, e.g. of cells from which the goal is unreachable, are kept in a binary heap.
+ */
+class BucketQueue implements OpenList {
+    private static final int WINDOW = 1024;
+
+    private final int[][] buckets = new int[WINDOW][];
+    private final int[] sizes = new int[WINDOW];
+    private final BinaryHeap overflow = new BinaryHeap();
+    private int lowestKey;
+    private int highestKey;
+    private int size;
+
+    @Override
+    public void add(int f, int g, int cell) {
+        if (size == 0) {
+            lowestKey = f;
+            highestKey = f;
+        } else if (f < lowestKey && highestKey - f < WINDOW) {
+            // The keys of an inconsistent heuristic may go down
+            lowestKey = f;
+        } else if (f < lowestKey || f - lowestKey >= WINDOW) {
+            overflow.add(f, g, cell);
+            return;
+        }
+        highestKey = Math.max(highestKey, f);
+        int bucket = f & (WINDOW - 1);
+        if (buckets[bucket] == null) {
+            buckets[bucket] = new int[16];
+        } else if (sizes[bucket] == buckets[bucket].length) {
+            buckets[bucket] = Arrays.copyOf(buckets[bucket], sizes[bucket] * 2);
+        }
+        buckets[bucket][sizes[bucket]++] = cell;
+        size++;
+    }
+
+    @Override
+    public int poll() {
+        if (size == 0) {
+            return overflow.isEmpty() ? -1 : overflow.poll();
+        }
+        while (sizes[lowestKey & (WINDOW - 1)] == 0) {
+            lowestKey++;
+        }
+        if (!overflow.isEmpty() && overflow.peekF() < lowestKey) {
+            return overflow.poll();
+        }
+        size--;
+        int bucket = lowestKey & (WINDOW - 1);
+        return buckets[bucket][--sizes[bucket]];
+    }
+}
+
+/**
+ * The state of the cells of one A* search: the cost to reach a cell, its parent and whether it is closed.
+ * A map picks the state that suits the way it keeps its cells, see {@link Map#newSearchState()}.
+ */
+interface SearchState {
+    /**
+     * @param cell - represents the index of the cell
+     * @return - the cost to reach the cell, Integer.MAX_VALUE if it was not reached
+     */
+    int getCost(int cell);
+
+    /**
+     * @param cell - represents the index of the cell, it must have been reached
+     * @return - the parent of the cell, -1 for the start
+     */
+    int getParent(int cell);
+
+    /**
+     * @param cell   - represents the index of the cell
+     * @param cost   - represents the cost to reach the cell
+     * @param parent - represents the parent of the cell, -1 for the start
+     */
+    void reach(int cell, int cost, int parent);
+
+    boolean isClosed(int cell);
+
+    /**
+     * @param cell - represents the index of the cell, it must have been reached
+     */
+    void close(int cell);
+}
+
+/**
+ * The state of a search in arrays indexed by the cell. It takes 9 bytes for every cell of the map, but every access is one array read.
+ */
+class DenseSearchState implements SearchState {
+    private final int[] costs;
+    private final int[] parents;
+    private final boolean[] closed;
+
+    /**
+     * Constructor for the DenseSearchState class.
+     *
+     * @param cells - represents the number of cells of the map
+     */
+    public DenseSearchState(int cells) {
+        costs = new int[cells];
+        parents = new int[cells];
+        closed = new boolean[cells];
+        Arrays.fill(costs, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int getCost(int cell) {
+        return costs[cell];
+    }
+
+    @Override
+    public int getParent(int cell) {
+        return parents[cell];
+    }
+
+    @Override
+    public void reach(int cell, int cost, int parent) {
+        costs[cell] = cost;
+        parents[cell] = parent;
+    }
+
+    @Override
+    public boolean isClosed(int cell) {
+        return closed[cell];
+    }
+
+    @Override
+    public void close(int cell) {
+        closed[cell] = true;
+    }
+}
+
+/**
+ * The state of a search in an open addressing table of the reached cells. It takes about 26 bytes for every reached cell
+ * and nothing for the cells the search never reached, so its size does not depend on the size of the map.
+ */
+class SparseSearchState implements SearchState {
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private int[] costs;
+    private int[] parents;
+    private boolean[] closed;
+    private int size;
+
+    /**
+     * Constructor for the SparseSearchState class.
+     */
+    public SparseSearchState() {
+        keys = new int[1024];
+        costs = new int[1024];
+        parents = new int[1024];
+        closed = new boolean[1024];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    @Override
+    public int getCost(int cell) {
+        int slot = find(cell);
+        return keys[slot] == EMPTY ? Integer.MAX_VALUE : costs[slot];
+    }
+
+    @Override
+    public int getParent(int cell) {
+        return parents[find(cell)];
+    }
+
+    @Override
+    public void reach(int cell, int cost, int parent) {
+        int slot = find(cell);
+        if (keys[slot] == EMPTY) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                slot = find(cell);
+            }
+            keys[slot] = cell;
+            size++;
+        }
+        costs[slot] = cost;
+        parents[slot] = parent;
+    }
+
+    @Override
+    public boolean isClosed(int cell) {
+        int slot = find(cell);
+        return keys[slot] != EMPTY && closed[slot];
+    }
+
+    @Override
+    public void close(int cell) {
+        closed[find(cell)] = true;
+    }
+
+    /**
+     * @return - the number of reached cells
+     */
+    public int size() {
+        return size;
+    }
+
+    private int find(int cell) {
+        int slot = cell * 0x9E3779B9 >>> 32 - Integer.numberOfTrailingZeros(keys.length);
+        while (keys[slot] != EMPTY && keys[slot] != cell) {
+            slot = slot + 1 & keys.length - 1;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldCosts = costs;
+        int[] oldParents = parents;
+        boolean[] oldClosed = closed;
+        keys = new int[oldKeys.length * 2];
+        costs = new int[oldKeys.length * 2];
+        parents = new int[oldKeys.length * 2];
+        closed = new boolean[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                costs[slot] = oldCosts[i];
+                parents[slot] = oldParents[i];
+                closed[slot] = oldClosed[i];
+            }
+        }
+    }
+}
+
+/**
+ * A class that represents a grid. The class has a field that represents the cells row by row: the code of the agent in the lower bits
+ * and the number of perception zones that cover the cell above them. The zones of Davy Jones and the Kraken may overlap,
+ * the count is changed only on the cells of one zone when an enemy is added or removed.
+ * The cells are read and written only by {@link #getCell(int, int)} and {@link #setCell(int, int, int)}, so a {@link MapOverlay} can replace them.
+ * The class has a field <b>rock</b> that represents the position of the rock.
+ * The class has a field <b>tortuga</b> that represents the positions of the tortuga.
+ */
+class Map {
+    /**
+     * The number of the bits of the code of the agent in a cell.
+     */
+    public static final int AGENT_BITS = 3;
+    public static final int AGENT_MASK = (1 << AGENT_BITS) - 1;
+    /**
+     * The perception zone of Davy Jones is the Moore neighborhood, the zone of the Kraken is the Von Neumann neighborhood.
+     */
+    private static final int[][] DAVY_ZONE = new int[][]{{-1, -1}, {0, -1}, {1, -1}, {-1, 0}, {1, 0}, {-1, 1}, {0, 1}, {1, 1}};
+    private static final int[][] KRAKEN_ZONE = new int[][]{{0, -1}, {-1, 0}, {1, 0}, {0, 1}};
+
+    final int width;
+    final int height;
+    private final int[] agents;
+    Position rock;
+    Position tortuga;
+    /**
+     * The cost of moving to the open water.
+     */
+    public static final int OPEN_WATER = 1;
+    /**
+     * The cost of moving to the shallows.
+     */
+    public static final int SHALLOWS = 2;
+    /**
+     * The cost of moving against a current.
+     */
+    public static final int CURRENT = 4;
+
+    private Heuristic heuristic = new ChebyshevHeuristic();
+    private int expansions;
+    private int skippedSearches;
+    /**
+     * The connected components of the map, built on the first search and dropped when the map is changed.
+     */
+    private ReachabilityIndex reachability;
+    /**
+     * The cost of moving to every cell, null while all cells are open water.
+     */
+    private byte[] costs;
+    /**
+     * The extra cost of moving to a perception zone, 0 if perception zones can not be entered at all.
+     */
+    private int perceptionPenalty;
+
+    /**
+     * Constructor for the Map class.
+     */
+    public Map() {
+        this(9, 9);
+    }
+
+    /**
+     * Constructor for the map of the given size.
+     *
+     * @param width  - represents the number of columns
+     * @param height - represents the number of rows
+     */
+    public Map(int width, int height) {
+        this(width, height, new int[width * height]);
+    }
+
+    /**
+     * Constructor for the maps that keep the cells elsewhere and override {@link #getCell(int, int)}, {@link #setCell(int, int, int)}
+     * and {@link #getCost(int, int)}.
+     *
+     * @param width  - represents the number of columns
+     * @param height - represents the number of rows
+     * @param agents - represents the cells row by row, null if the map keeps them elsewhere
+     */
+    protected Map(int width, int height, int[] agents) {
+        this.width = width;
+        this.height = height;
+        this.agents = agents;
+    }
+
+    /**
+     * Constructor for the overlays. The overlay has the same size and agents' positions as the base map,
+     * but it does not have the codes of its own. The heuristic of the base map is taken only if it does not depend on the cells,
+     * see {@link Heuristic#withCellsChanged()}.
+     *
+     * @param base - represents the base map
+     */
+    protected Map(Map base) {
+        this(base.width, base.height, null);
+        rock = base.rock;
+        tortuga = base.tortuga;
+        heuristic = base.heuristic.withCellsChanged();
+        perceptionPenalty = base.perceptionPenalty;
+    }
+
+    /**
+     * @param x - represents the x coordinate of the cell
+     * @param y - represents the y coordinate of the cell
+     * @return - the cell: the code of the agent and the number of perception zones covering it
+     */
+    protected int getCell(int x, int y) {
+        return agents[y * width + x];
+    }
+
+    /**
+     * @param x    - represents the x coordinate of the cell
+     * @param y    - represents the y coordinate of the cell
+     * @param cell - represents the code of the agent and the number of perception zones covering the cell
+     */
+    protected void setCell(int x, int y, int cell) {
+        agents[y * width + x] = cell;
+        reachability = null;
+    }
+
+    /**
+     * @param x - represents the x coordinate of the cell
+     * @param y - represents the y coordinate of the cell
+     * @return - the code of the agent in the cell, -1 if the cell is in a perception zone and it is not Davy Jones or the Kraken.
+     * The agent stays in the cell under the zones, so -1 is returned for Jack, the chest or the tortuga in a zone as well,
+     * and the agent is returned again once the zones are removed. Before the zones were counted, the zone replaced the agent.
+     */
+    public int getAgent(int x, int y) {
+        int cell = getCell(x, y);
+        int agent = cell & AGENT_MASK;
+        return cell >>> AGENT_BITS != 0 && agent != 2 && agent != 3 ? -1 : agent;
+    }
+
+    /**
+     * @param x - represents the x coordinate of the cell
+     * @param y - represents the y coordinate of the cell
+     * @return - the number of perception zones covering the cell
+     */
+    public int getDanger(int x, int y) {
+        return getCell(x, y) >>> AGENT_BITS;
+    }
+
+    /**
+     * Puts the agent in the cell, the perception zones covering the cell stay. The enemies are put by {@link #addEnemy(int, Position)}.
+     *
+     * @param x     - represents the x coordinate of the cell
+     * @param y     - represents the y coordinate of the cell
+     * @param agent - represents the code of the agent, 0 for an empty cell
+     */
+    public void setAgent(int x, int y, int agent) {
+        if (agent < 0 || agent > AGENT_MASK) {
+            throw new IllegalArgumentException("Invalid agent code " + agent + ", the perception zones come with the enemies");
+        }
+        setCell(x, y, getCell(x, y) & ~AGENT_MASK | agent);
+    }
+
+    /**
+     * Adds Davy Jones or the Kraken to the map and covers its perception zone. Any number of enemies can be added.
+     *
+     * @param agent    - represents the code of the enemy, 2 for Davy Jones and 3 for the Kraken
+     * @param position - represents the position of the enemy
+     */
+    public void addEnemy(int agent, Position position) {
+        if (agent != 2 && agent != 3) {
+            throw new IllegalArgumentException("Invalid enemy code " + agent);
+        }
+        int current = getCell(position.getX(), position.getY()) & AGENT_MASK;
+        if (current == 2 || current == 3) {
+            throw new IllegalArgumentException("There is an enemy at " + position + " already");
+        }
+        setAgent(position.getX(), position.getY(), agent);
+        coverZone(agent, position, 1);
+    }
+
+    /**
+     * Removes Davy Jones or the Kraken from the map and uncovers its perception zone.
+     * The cells covered by the zones of other enemies stay dangerous.
+     *
+     * @param position - represents the position of the enemy
+     */
+    public void removeEnemy(Position position) {
+        int agent = getCell(position.getX(), position.getY()) & AGENT_MASK;
+        if (agent != 2 && agent != 3) {
+            throw new IllegalArgumentException("There is no enemy at " + position);
+        }
+        setAgent(position.getX(), position.getY(), 0);
+        coverZone(agent, position, -1);
+    }
+
+    /**
+     * Changes the number of perception zones covering the cells of the zone of one enemy.
+     * All cells are checked before any of them is changed, so a zone that does not fit leaves the map as it was.
+     */
+    private void coverZone(int agent, Position position, int change) {
+        int[][] zone = agent == 2 ? DAVY_ZONE : KRAKEN_ZONE;
+        for (int[] offset : zone) {
+            int x = position.getX() + offset[0];
+            int y = position.getY() + offset[1];
+            if (isPositionValid(x, y)) {
+                int danger = getDanger(x, y) + change;
+                if (danger < 0) {
+                    throw new IllegalStateException("The perception zone at (" + x + "," + y + ") was not covered");
+                }
+                if (danger > getMaxDanger()) {
+                    throw new IllegalStateException("The cell (" + x + "," + y + ") is covered by " + getMaxDanger() + " perception zones already");
+                }
+            }
+        }
+        for (int[] offset : zone) {
+            int x = position.getX() + offset[0];
+            int y = position.getY() + offset[1];
+            if (isPositionValid(x, y)) {
+                setCell(x, y, getCell(x, y) + (change << AGENT_BITS));
+            }
+        }
+    }
+
+    /**
+     * @return - the largest number of perception zones that can cover one cell
+     */
+    protected int getMaxDanger() {
+        return Integer.MAX_VALUE >>> AGENT_BITS;
+    }
+
+    /**
+     * @return - the connected components of the map, built if the map was changed since the last call
+     */
+    public ReachabilityIndex getReachability() {
+        if (reachability == null) {
+            reachability = new ReachabilityIndex(this);
+        }
+        return reachability;
+    }
+
+    /**
+     * Checks before the search whether Jack may reach the chest. The map asks its {@link ReachabilityIndex}.
+     *
+     * @param jack  - represents the position of Jack
+     * @param chest - represents the position of the chest
+     * @return - false if no search can find the route, true if a search may find it
+     */
+    protected boolean mayWin(Position jack, Position chest) {
+        return getReachability().canWin(jack, chest, tortuga);
+    }
+
+    /**
+     * Drops the connected components of the map, they are built again on the next search.
+     */
+    protected void invalidateReachability() {
+        reachability = null;
+    }
+
+    /**
+     * This function adds the agent to the map.
+     *
+     * @param i        - represents the agent type
+     * @param position - represents the position of the agent on the map
+     */
+    public void addAgent(int i, Position position) {
+        // If the agent it dangerous (Davy Jones or Tortuga) then we also should consider their perception zones.
+        if (i == 2 || i == 3) {
+            addEnemy(i, position);
+        } else {
+            setAgent(position.getX(), position.getY(), i);
+        }
+    }
+
+    /**
+     * Kills the Kraken: the Kraken and its perception zone are removed, the zones of other enemies stay. The map itself is not changed.
+     * A rock in the zone of the Kraken was never put, see {@link #addRock(Position)}, so its cell is free after the kill.
+     *
+     * @param kraken - represents the position of the Kraken
+     * @return - the overlay of the map where the Kraken is dead
+     */
+    public MapOverlay killKraken(Position kraken) {
+        MapOverlay killed = new MapOverlay(this);
+        killed.removeEnemy(kraken);
+        return killed;
+    }
+
+    /**
+     * Kills all Krakens. The map itself is not changed.
+     *
+     * @return - the overlay of the map without the Krakens, or the map itself if there are no Krakens
+     */
+    public Map killKrakens() {
+        MapOverlay killed = null;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (getAgent(x, y) == 3) {
+                    if (killed == null) {
+                        killed = new MapOverlay(this);
+                    }
+                    killed.removeEnemy(new Position(x, y));
+                }
+            }
+        }
+        return killed == null ? this : killed;
+    }
+
+    /**
+     * This function adds all agents to the map.
+     *
+     * @param agents - represents the positions of Jack, Davy Jones, the Kraken, the rock, the chest and the tortuga
+     */
+    public void addAgents(ArrayList<Position> agents) {
+        for (int i = 0; i < 6; i++) {
+            if (i == 3) {
+                addRock(agents.get(i));
+            } else if (i == 5) {
+                addTortuga(agents.get(i));
+            } else {
+                addAgent(i + 1, agents.get(i));
+            }
+        }
+    }
+
+    /**
+     * This function adds the rock to the map. A rock in a perception zone is not put, so the cell is free once the zone is removed.
+     *
+     * @param position - represents the position of the rock on the map
+     */
+    public void addRock(Position position) {
+        if (getAgent(position.getX(), position.getY()) == 0) {
+            setAgent(position.getX(), position.getY(), 4);
+        }
+        rock = position;
+    }
+
+    /**
+     * This function adds the tortuga to the map.
+     *
+     * @param position - represents the position of the tortuga on the map
+     */
+    public void addTortuga(Position position) {
+        if (getAgent(position.getX(), position.getY()) == 0) {
+            setAgent(position.getX(), position.getY(), 6);
+        }
+        tortuga = position;
+    }
+
+    /**
+     * Utility function to check if the given position is valid.
+     *
+     * @param x - represents the x coordinate of the position
+     * @param y - represents the y coordinate of the position
+     * @return - true if the position is valid, false otherwise
+     */
+    public boolean isPositionValid(int x, int y) {
+        return x >= 0 && x < width && y >= 0 && y < height;
+    }
+
+    /**
+     * Utility function to check if Jack can step on the given position.
+     *
+     * @param position - represents the given position
+     * @return - false for the dangerous zones, Davy Jones, the Kraken and the rock, true otherwise
+     */
+    public boolean isPassable(Position position) {
+        return isPassable(position.getX(), position.getY());
+    }
+
+    /**
+     * Utility function to check if Jack can step on the given cell.
+     *
+     * @param x - represents the x coordinate of the cell
+     * @param y - represents the y coordinate of the cell
+     * @return - false for the dangerous zones, Davy Jones, the Kraken and the rock, true otherwise
+     */
+    public boolean isPassable(int x, int y) {
+        int agent = getAgent(x, y);
+        return (agent != -1 || perceptionPenalty > 0) && agent != 2 && agent != 3 && agent != 4;
+    }
+
+    /**
+     * Sets the cost of moving to the cell.
+     *
+     * @param position - represents the position of the cell
+     * @param cost     - represents the cost, from 1 to 127
+     */
+    public void setCost(Position position, int cost) {
+        if (cost < 1 || cost > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("The cost must be from 1 to " + Byte.MAX_VALUE + ": " + cost);
+        }
+        if (costs == null) {
+            costs = new byte[width * height];
+            Arrays.fill(costs, (byte) OPEN_WATER);
+        }
+        costs[index(position)] = (byte) cost;
+    }
+
+    /**
+     * @param position - represents the position of the cell
+     * @return - the cost of moving to the cell without the perception penalty
+     */
+    public int getCost(Position position) {
+        return getCost(position.getX(), position.getY());
+    }
+
+    /**
+     * @param x - represents the x coordinate of the cell
+     * @param y - represents the y coordinate of the cell
+     * @return - the cost of moving to the cell
+     */
+    public int getCost(int x, int y) {
+        return costs == null ? OPEN_WATER : costs[y * width + x];
+    }
+
+    /**
+     * @param position - represents the position of the cell
+     * @return - the cost of moving to the cell including the perception penalty
+     */
+    public int getMoveCost(Position position) {
+        return getMoveCost(position.getX(), position.getY());
+    }
+
+    /**
+     * @param x - represents the x coordinate of the cell
+     * @param y - represents the y coordinate of the cell
+     * @return - the cost of moving to the cell including the perception penalty
+     */
+    public int getMoveCost(int x, int y) {
+        int cost = getCost(x, y);
+        return getAgent(x, y) == -1 ? cost + perceptionPenalty : cost;
+    }
+
+    public int getPerceptionPenalty() {
+        return perceptionPenalty;
+    }
+
+    /**
+     * Makes the perception zones passable at the extra cost instead of blocking them.
+     *
+     * @param perceptionPenalty - represents the extra cost, 0 blocks the perception zones again
+     */
+    public void setPerceptionPenalty(int perceptionPenalty) {
+        this.perceptionPenalty = perceptionPenalty;
+        reachability = null;
+    }
+
+    public Heuristic getHeuristic() {
+        return heuristic;
+    }
+
+    public void setHeuristic(Heuristic heuristic) {
+        this.heuristic = heuristic;
+    }
+
+    /**
+     * @return - the number of positions expanded by A* since the last call of {@link #resetExpansions()}
+     */
+    public int getExpansions() {
+        return expansions;
+    }
+
+    public void resetExpansions() {
+        expansions = 0;
+    }
+
+    /**
+     * @return - the number of searches that were not run because the chest can not be reached at all
+     */
+    public int getSkippedSearches() {
+        return skippedSearches;
+    }
+
+    /**
+     * Utility function to get the cell as a new position.
+     *
+     * @param x - represents the x coordinate of the cell
+     * @param y - represents the y coordinate of the cell
+     * @return - the position with the code of the agent in the cell
+     */
+    public Position cell(int x, int y) {
+        Position position = new Position(x, y);
+        position.setAgent(getAgent(x, y));
+        return position;
+    }
+
+    /**
+     * Utility function to get the Moore neighbors of the given position.
+     *
+     * @param position - represents the given position
+     * @return - returns an ArrayList of Moore neighbors
+     */
+    public ArrayList<Position> getMooreNeighbors(Position position) {
+        ArrayList<Position> neighbors = new ArrayList<>();
+        for (int i = -1; i <= 1; i++) {
+            for (int j = -1; j <= 1; j++) {
+                if (i == 0 && j == 0) continue;
+                if (isPositionValid(position.getX() + i, position.getY() + j)) {
+                    neighbors.add(cell(position.getX() + i, position.getY() + j));
+                }
+
+            }
+        }
+        return neighbors;
+    }
+
+    /**
+     * Utility function to get the Von Neumann neighbors of the given position.
+     *
+     * @param position - represents the given position
+     * @return - returns an ArrayList of Von Neumann neighbors
+     */
+    public ArrayList<Position> getVonNeumannNeighbors(Position position) {
+        ArrayList<Position> neighbors = new ArrayList<>();
+        for (int i = -1; i <= 1; i++) {
+            for (int j = -1; j <= 1; j++) {
+                if (i == 0 && j == 0) continue;
+                if (i != 0 && j != 0) continue;
+                if (isPositionValid(position.getX() + i, position.getY() + j)) {
+                    neighbors.add(cell(position.getX() + i, position.getY() + j));
+                }
+
+            }
+        }
+        return neighbors;
+    }
+
+    /**
+     * A function that writes the solution and corresponding statistics to a file.
+     *
+     * @param writer      - represents the writer that writes to the file
+     * @param solution    - represents the solution
+     * @param elapsedTime - represents the time it took to find the solution
+     * @throws IOException - throws an exception if the file is not found
+     */
+    public void representSolution(FileWriter writer, ArrayList<Position> solution, long elapsedTime) throws IOException {
+        writer.write((solution.size() - 1) + "\n");
+        for (Position position : solution) {
+            writer.write("[" + position.getX() + "," + position.getY() + "] ");
+        }
+        writer.write("\n");
+        writer.write("-------------------\n");
+        writer.write(" ");
+        for (int j = 0; j < height; j++) {
+            writer.write(" " + j);
+        }
+        writer.write("\n");
+        HashSet<Position> cells = new HashSet<>(solution);
+        for (int i = 0; i < width; i++) {
+            writer.write(i + "");
+            for (int j = 0; j < height; j++) {
+                if (cells.contains(new Position(i, j))) {
+                    writer.write(" *");
+                } else {
+                    writer.write(" -");
+                }
+            }
+            writer.write("\n");
+        }
+        writer.write("-------------------\n");
+        float time = (float) Math.round(elapsedTime * 100 / 1000000.0f) / 100;
+        writer.write(time + " ms\n");
+
+
+    }
+
+    /**
+     * Utility function to find the agent on the map.
+     *
+     * @param agent - represents the agent type
+     * @return - a new position of the agent or null if there is no such agent on the map
+     */
+    public Position findAgent(int agent) {
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                if (getAgent(j, i) == agent) {
+                    return new Position(j, i);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the route from Jack to the chest with the given path finder and measures the time it took.
+     * The search is not run if the connected components show that the chest can not be reached even after killing the Kraken,
+     * see {@link #mayWin(Position, Position)}.
+     *
+     * @param finder - represents the engine that searches the route
+     * @return - the result of the search
+     */
+    public SearchResult solve(PathFinder finder) {
+        SearchEvent event = new SearchEvent();
+        event.begin();
+        Position jack = findAgent(1);
+        Position chest = findAgent(5);
+        resetExpansions();
+        long startTime = System.nanoTime();
+        ArrayList<Position> solution = null;
+        boolean skipped = false;
+        // Jack is not on the map if he starts inside a dangerous zone
+        if (jack != null && chest != null) {
+            if (mayWin(jack, chest)) {
+                solution = finder.findPath(this, jack, chest);
+            } else {
+                skippedSearches++;
+                skipped = true;
+            }
+        }
+        long elapsedTime = System.nanoTime() - startTime;
+        SearchResult result = new SearchResult(finder.getName(), solution, elapsedTime, expansions);
+        SearchEvent.record(event, result.getEngine(), result.isWin() ? solution.size() - 1 : -1, elapsedTime, expansions, skipped);
+        return result;
+    }
+
+    /**
+     * A function that writes the result of the search to a file.
+     *
+     * @param fileName - represents the name of the file
+     * @param result   - represents the result of the search
+     */
+    public void writeResult(String fileName, SearchResult result) {
+        try {
+            File outputFile = new File(fileName);
+            outputFile.createNewFile();
+            FileWriter writer = new FileWriter(fileName);
+            if (result.isWin()) {
+                writer.write("Win\n");
+                representSolution(writer, result.getPath(), result.getElapsedTime());
+                writer.write(result.getExpansions() + " expansions\n");
+            } else {
+                // No solution
+                writer.write("Lose\n");
+            }
+            writer.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A function that initializes AStar algorithm and finds the solution or combine them in case of killing the Kraken.
+     */
+    public void aStarInit() {
+        writeResult("outputAStar.txt", solve(PathFinderRegistry.get("AStar")));
+    }
+
+    /**
+     * Finds the route from Jack to the chest with A*. If the chest is not reachable directly,
+     * Jack goes to the tortuga first and then kills the kraken on the way to the chest.
+     * The number of expanded positions of all legs is available via {@link #getExpansions()}.
+     *
+     * @param jack      - represents the position of Jack
+     * @param chest     - represents the position of the chest
+     * @param heuristic - represents the heuristic used by A*
+     * @return - the route from Jack to the chest including both ends, or null if there is no route
+     */
+    public ArrayList<Position> aStarRoute(Position jack, Position chest, Heuristic heuristic) {
+        return aStarRoute(jack, chest, heuristic, () -> false);
+    }
+
+    /**
+     * Finds the route from Jack to the chest with A* that can be stopped.
+     *
+     * @param jack      - represents the position of Jack
+     * @param chest     - represents the position of the chest
+     * @param heuristic - represents the heuristic used by A*
+     * @param stop      - is checked during the searches, the search is cancelled as soon as it returns true
+     * @return - the route from Jack to the chest including both ends, or null if there is no route
+     * @throws CancellationException - if the search was stopped before it finished
+     */
+    public ArrayList<Position> aStarRoute(Position jack, Position chest, Heuristic heuristic, BooleanSupplier stop) {
+        resetExpansions();
+        ArrayList<Position> solution = aStar(jack, chest, heuristic, stop);
+        if (solution != null) {
+            //Solution without killing the kraken exists
+            solution.add(jack);
+            Collections.reverse(solution);
+            return solution;
+        }
+        // Now try to reach the tortuga
+        ArrayList<Position> solution1 = aStar(jack, tortuga, heuristic, stop);
+        if (solution1 == null) {
+            return null;
+        }
+        // Now try to kill the kraken
+        ArrayList<Position> solution2 = aStar(tortuga, chest, heuristic, stop);
+        if (solution2 == null) {
+            return null;
+        }
+        solution1.add(jack);
+        Collections.reverse(solution1);
+        Collections.reverse(solution2);
+        solution1.addAll(solution2);
+        return solution1;
+    }
+
+    /**
+     * A* Algorithm with the heuristic of the map.
+     */
+    public ArrayList<Position> aStar(Position start, Position goal) {
+        return aStar(start, goal, heuristic);
+    }
+
+    /**
+     * A* Algorithm that runs until it finds the goal or the open list is empty.
+     */
+    public ArrayList<Position> aStar(Position start, Position goal, Heuristic heuristic) {
+        return aStar(start, goal, heuristic, () -> false);
+    }
+
+    /**
+     * A* Algorithm with the bucket queue as the open list.
+     *
+     * @throws CancellationException - if the search was stopped before it finished
+     */
+    public ArrayList<Position> aStar(Position start, Position goal, Heuristic heuristic, BooleanSupplier stop) {
+        return aStar(start, goal, heuristic, new BucketQueue(), stop);
+    }
+
+    /**
+     * A* Algorithm. Every cell has a cost to reach it and a parent cell, they are kept in the state from {@link #newSearchState()}.
+     * A cell may be added to the open list several times, only the copy with the lowest cost is expanded and the others are skipped.
+     * The cost of a move is the cost of the cell Jack moves to, so the path is the cheapest one, not the shortest one.
+     *
+     * @param start     - represents the start position
+     * @param goal      - represents the goal position
+     * @param heuristic - represents the estimate of the remaining cost
+     * @param open      - represents the empty open list
+     * @param stop      - is checked during the search, the search is cancelled as soon as it returns true
+     * @return - the path from the goal to the start excluding the start, or null if the goal is not reachable
+     * @throws CancellationException - if the search was stopped before it finished
+     */
+    public ArrayList<Position> aStar(Position start, Position goal, Heuristic heuristic, OpenList open, BooleanSupplier stop) {
+        SearchEvent event = new SearchEvent();
+        event.begin();
+        long startTime = System.nanoTime();
+        int expanded = expansions;
+        ArrayList<Position> path = search(start, goal, heuristic, open, stop);
+        SearchEvent.recordLeg(event, "A*", path == null ? -1 : path.size(), System.nanoTime() - startTime, expansions - expanded);
+        return path;
+    }
+
+    /**
+     * The A* search itself, {@link #aStar(Position, Position, Heuristic, OpenList, BooleanSupplier)} records it.
+     */
+    private ArrayList<Position> search(Position start, Position goal, Heuristic heuristic, OpenList open, BooleanSupplier stop) {
+        if (stop.getAsBoolean()) {
+            // Before the state of the search is allocated
+            throw new CancellationException("A* was stopped");
+        }
+        // The Kraken is killed in an overlay, so the map stays as it is
+        Map grid = this;
+        if (start.equals(tortuga)) {
+            heuristic = heuristic.withKrakenKilled();
+        }
+        SearchState state = newSearchState();
+        int goalCell = index(goal);
+        state.reach(index(start), 0, -1);
+        open.add(heuristic.estimate(start.getX(), start.getY(), goal.getX(), goal.getY()), 0, index(start));
+        int cell;
+        while ((cell = open.poll()) >= 0) {
+            if (state.isClosed(cell)) {
+                // A copy with a higher cost
+                continue;
+            }
+            if (stop.getAsBoolean()) {
+                throw new CancellationException("A* was stopped");
+            }
+            if (cell == goalCell) {
+                return reconstructPath(state, cell);
+            }
+            state.close(cell);
+            expansions++;
+            for (int i = -1; i <= 1; i++) {
+                for (int j = -1; j <= 1; j++) {
+                    int x = cell % width + i;
+                    int y = cell / width + j;
+                    if (i == 0 && j == 0 || !isPositionValid(x, y)) continue;
+                    if (start.equals(tortuga) && grid.getAgent(x, y) == 3 && !new Position(x, y).equals(rock)) {
+                        // We killed the kraken, the next krakens are killed in the same overlay
+                        if (grid == this) {
+                            grid = new MapOverlay(this);
+                        }
+                        grid.removeEnemy(new Position(x, y));
+                    }
+                    int next = y * width + x;
+                    if (state.isClosed(next) || !grid.isPassable(x, y) && next != goalCell) {
+                        continue;
+                    }
+                    int cost = state.getCost(cell) + grid.getMoveCost(x, y);
+                    if (cost < state.getCost(next)) {
+                        state.reach(next, cost, cell);
+                        open.add(cost + heuristic.estimate(x, y, goal.getX(), goal.getY()), cost, next);
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Reconstructs the path from the goal to the start.
+     *
+     * @param parents The parent of every cell, -1 for the start
+     * @param goal    The goal cell
+     * @return The path from the goal to the start excluding the start
+     */
+    public ArrayList<Position> reconstructPath(int[] parents, int goal) {
+        ArrayList<Position> path = new ArrayList<>();
+        int current = goal;
+        while (parents[current] != -1) {
+            path.add(new Position(current % width, current / width));
+            current = parents[current];
+        }
+        return path;
+    }
+
+    /**
+     * Reconstructs the path from the goal to the start.
+     *
+     * @param state The state of the search
+     * @param goal  The goal cell
+     * @return The path from the goal to the start excluding the start
+     */
+    public ArrayList<Position> reconstructPath(SearchState state, int goal) {
+        ArrayList<Position> path = new ArrayList<>();
+        int current = goal;
+        while (state.getParent(current) != -1) {
+            path.add(new Position(current % width, current / width));
+            current = state.getParent(current);
+        }
+        return path;
+    }
+
+    /**
+     * Creates the state of one A* search. The map keeps the state in arrays of the size of the map, like its cells.
+     *
+     * @return - the empty state
+     */
+    protected SearchState newSearchState() {
+        return new DenseSearchState(width * height);
+    }
+
+    /**
+     * Utility function to get the index of the cell in the arrays of the search.
+     *
+     * @param position - represents the position of the cell
+     * @return - the index of the cell
+     */
+    public int index(Position position) {
+        return position.getY() * width + position.getX();
+    }
+
+    /**
+     * A function that initializes the backtracking algorithm and finds the solution or combine them in case of killing the Kraken.
+     */
+    public void backtrackInit() {
+        writeResult("outputBacktracking.txt", solve(PathFinderRegistry.get("Backtracking")));
+    }
+
+    /**
+     * Backtracking search. The forks are explored in the common pool if it has more than one thread.
+     *
+     * @return The solution or null if there is no solution.
+     */
+    public ArrayList<Position> backtrackingSearch(Position start, Position goal) {
+        return backtrackingSearch(start, goal, ForkSearchTask.PARALLEL ? ForkJoinPool.commonPool() : null);
+    }
+
+    /**
+     * Backtracking search.
+     * Move towards the goal, if a position which is less successful is reached - stop and move back up the tree.
+     * The result does not depend on the pool, only the time does.
+     *
+     * @param pool - represents the pool the forks are explored in, null to explore them in the calling thread
+     * @return The solution or null if there is no solution.
+     */
+    public ArrayList<Position> backtrackingSearch(Position start, Position goal, ForkJoinPool pool) {
+        SearchEvent event = new SearchEvent();
+        event.begin();
+        long startTime = System.nanoTime();
+        int expanded = expansions;
+        ArrayList<Position> path = backtrack(start, goal, pool);
+        boolean win = path != null && goal.equals(path.get(path.size() - 1));
+        SearchEvent.recordLeg(event, "Backtracking search", win ? path.size() - 1 : -1, System.nanoTime() - startTime, expansions - expanded);
+        return path;
+    }
+
+    /**
+     * The backtracking search itself, {@link #backtrackingSearch(Position, Position, ForkJoinPool)} records it.
+     */
+    private ArrayList<Position> backtrack(Position start, Position goal, ForkJoinPool pool) {
+        ArrayList<Position> path = new ArrayList<>();
+        path.add(start);
         ArrayList<Position> forks = new ArrayList<>();
+        // The length of the path before each fork
+        ArrayList<Integer> forkPrefixes = new ArrayList<>();
         Position current = start;
         int bestResult = 99;
         while (current != null && !current.equals(goal)) {
+            expansions++;
             ArrayList<Position> neighbors = getMooreNeighbors(current);
             Position best = null;
-            for (Position neighbor : neighbors) {
-                if (path.contains(neighbor) || neighbor.getAgent() == -1 || neighbor.getAgent() == 2 || neighbor.getAgent() == 3 || neighbor.getAgent() == 4)
+            for (Position neighbor : neighbors) {
+                if (path.contains(neighbor) || neighbor.getAgent() == -1 || neighbor.getAgent() == 2 || neighbor.getAgent() == 3 || neighbor.getAgent() == 4)
+                    continue;
+                if (best == null) {
+                    best = neighbor;
+                } else {
+                    if (Math.abs(neighbor.getX() - goal.getX()) + Math.abs(neighbor.getY() - goal.getY()) < Math.abs(best.getX() - goal.getX()) + Math.abs(best.getY() - goal.getY())) {
+                        best = neighbor;
+                    } else if (Math.abs(neighbor.getX() - goal.getX()) + Math.abs(neighbor.getY() - goal.getY()) == Math.abs(best.getX() - goal.getX()) + Math.abs(best.getY() - goal.getY())) {
+                        forks.add(neighbor); // The algorithm will return to the fork and try another path
+                        forkPrefixes.add(path.size());
+                    }
+                }
+            }
+            current.setParent(best);
+            current = best;
+            path.add(current);
+            // If the size of the path is large enough, then there is no solution(at least without visiting tortuga).
+            if (path.size() > maxPathLength()) {
+                break;
+            }
+        }
+        // If we have forks, we will try to find the best path from them and then return to the main path.
+        // The forks are explored in parallel and share the length of the best path found so far.
+        if (current != null && !forks.isEmpty() && current.equals(goal)) {
+            ForkBound bound = new ForkBound(path);
+            ArrayList<ForkSearchTask> tasks = new ArrayList<>();
+            for (int i = 0; i < forks.size(); i++) {
+                ArrayList<Position> newPathForFork = new ArrayList<>(path.subList(0, forkPrefixes.get(i)));
+                newPathForFork.add(forks.get(i));
+                tasks.add(new ForkSearchTask(this, newPathForFork, goal, bound, pool != null, 1));
+            }
+            if (pool != null && path.size() > ForkSearchTask.sequentialThreshold(this)) {
+                pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+            } else {
+                for (ForkSearchTask task : tasks) {
+                    task.invoke();
+                }
+            }
+            for (ForkSearchTask task : tasks) {
+                expansions += task.getExpansions();
+            }
+            path = bound.getPath();
+        }
+        if (current == null) {
+            //Restart the algorithm with the goal to reach the tortuga and then reach the chest by killing the kraken.
+            path.clear();
+            path.add(start);
+            current = start;
+            while (current != null && !current.equals(tortuga)) {
+                expansions++;
+                ArrayList<Position> neighbors = getMooreNeighbors(current);
+                Position best = null;
+                for (Position neighbor : neighbors) {
+                    if (path.contains(neighbor) || neighbor.getAgent() == -1 || neighbor.getAgent() == 2 || neighbor.getAgent() == 3 || neighbor.getAgent() == 4)
+                        continue;
+                    if (best == null) {
+                        best = neighbor;
+                    } else {
+                        if (Math.abs(neighbor.getX() - tortuga.getX()) + Math.abs(neighbor.getY() - tortuga.getY()) < Math.abs(best.getX() - tortuga.getX()) + Math.abs(best.getY() - tortuga.getY())) {
+                            best = neighbor;
+                        } else if (Math.abs(neighbor.getX() - tortuga.getX()) + Math.abs(neighbor.getY() - tortuga.getY()) == Math.abs(best.getX() - tortuga.getX()) + Math.abs(best.getY() - tortuga.getY())) {
+                            forks.add(neighbor); // The algorithm will return to the fork and try another path
+                        }
+                    }
+                }
+                current = best;
+                path.add(current);
+                if (path.size() > maxPathLength()) {
+                    break;
+                }
+            }
+            // Now, we will try to kill the kraken and reach the chest.
+            // The Kraken is killed in an overlay, so the map stays as it is
+            Map grid = this;
+            ArrayList<Position> pathToChest = new ArrayList<>();
+            while (current != null && !current.equals(goal)) {
+                expansions++;
+                ArrayList<Position> neighbors = grid.getMooreNeighbors(current);
+                Position best = null;
+                for (Position neighbor : neighbors) {
+                    if (grid.getAgent(neighbor.getX(), neighbor.getY()) == 3) {
+                        // We killed the kraken, the next krakens are killed in the same overlay
+                        if (grid == this) {
+                            grid = new MapOverlay(this);
+                        }
+                        grid.removeEnemy(neighbor);
+                    }
+                    int agent = grid.getAgent(neighbor.getX(), neighbor.getY());
+                    if (pathToChest.contains(neighbor) || agent == -1 || agent == 2 || agent == 4)
+                        continue;
+                    if (best == null) {
+                        best = neighbor;
+                    } else {
+                        if (Math.abs(neighbor.getX() - goal.getX()) + Math.abs(neighbor.getY() - goal.getY()) < Math.abs(best.getX() - goal.getX()) + Math.abs(best.getY() - goal.getY())) {
+                            best = neighbor;
+                        } else if (Math.abs(neighbor.getX() - goal.getX()) + Math.abs(neighbor.getY() - goal.getY()) == Math.abs(best.getX() - goal.getX()) + Math.abs(best.getY() - goal.getY())) {
+                            neighbor.setParent(current);
+                            forks.add(neighbor); // The algorithm will return to the fork and try another path
+                        }
+                    }
+                }
+                current.setParent(best);
+                current = best;
+                pathToChest.add(current);
+                // If the size of the path is large enough, then there is no solution(at least without visiting tortuga).
+                if (path.size() > maxPathLength()) {
+                    break;
+                }
+            }
+            path.addAll(pathToChest);
+        }
+
+        return path;
+    }
+
+    /**
+     * A path of the backtracking search that is longer than this has no solution, at least without visiting the tortuga.
+     * It is 65 on the map of the game.
+     */
+    private int maxPathLength() {
+        return width * height * 4 / 5 + 1;
+    }
+
+    /**
+     * This method is used to check validity of the map.
+     * @param agents The list of agents.
+     * @return True if the map is valid, false otherwise.
+     */
+    public boolean checkValidity(String[] agents) {
+        ArrayList<Position> agentsParsed = new ArrayList<>();
+        for (int i=0;i<6;i++) {
+            Position temp = Position.parsePosition(agents[i]);
+            if (isPositionValid(temp.getX(), temp.getY())) {
+                temp.setAgent(i+1);
+                agentsParsed.add(temp);
+            } else {
+                return false;
+            }
+        }
+        Position jack = agentsParsed.get(0);
+        Position davy = agentsParsed.get(1);
+        Position kraken = agentsParsed.get(2);
+        Position rock = agentsParsed.get(3);
+        Position chest = agentsParsed.get(4);
+        Position tortuga = agentsParsed.get(5);
+
+        if (jack.getX()!=0 && jack.getY()!=0) {
+            // Check Jack
+            return false;
+        } else if (davy.getX() == 0 && davy.getY() == 0) {
+            // Check Davy
+            return false;
+        } else if (getMooreNeighbors(kraken).contains(davy) || kraken.getX() == 0 && kraken.getY() == 0 || kraken.getX() == davy.getX() && kraken.getY() == davy.getY() ) {
+            // Check Kraken
+            return false;
+        } else if (getMooreNeighbors(rock).contains(davy) || rock.getX() == 0 && rock.getY() == 0 || rock.getX() == davy.getX() && rock.getY() == davy.getY()) {
+            // Check Rock
+            return false;
+        } else if (getAgent(chest.getX(), chest.getY()) == -1 || chest.getX() == 0 && chest.getY() == 0 || chest.getX() == davy.getX() && chest.getY() == davy.getY() || chest.getX() == kraken.getX() && chest.getY() == kraken.getY() || chest.getX() == rock.getX() && chest.getY() == rock.getY()) {
+            // Check Chest
+            return false;
+        } else if (getAgent(tortuga.getX(), tortuga.getY()) == -1 || tortuga.getX() == davy.getX() && tortuga.getY() == davy.getY() || tortuga.getX() == kraken.getX() && tortuga.getY() == kraken.getY() || tortuga.getX() == rock.getX() && tortuga.getY() == rock.getY() || tortuga.getX() == chest.getX() && tortuga.getY() == chest.getY()) {
+            // Check Tortuga
+            return false;
+        }
+        return true;
+    }
+}
+
+/**
+ * A copy-on-write view of a map. The overlay keeps only the cells that were changed, every other cell is read from the base map,
+ * so a what-if map costs as much as the changes and the base map is never touched.
+ * Overlays can be stacked, any number of overlays can read one base map at the same time.
+ * The costs of the terrain are copied on write the same way, they are kept in the same table after the cells.
+ * A what-if changes a few cells, so the rows without changes are marked and read from the base map directly.
+ */
+class MapOverlay extends Map {
+    private static final int EMPTY = -1;
+
+    private final Map base;
+    /**
+     * One bit for every row that has a changed cell or cost, the other rows are read from the base map without probing the table.
+     */
+    private final long[] changedRows;
+    private int[] keys;
+    private int[] values;
+    private int size;
+
+    /**
+     * Constructor for the MapOverlay class.
+     *
+     * @param base - represents the map the overlay reads the unchanged cells from
+     */
+    public MapOverlay(Map base) {
+        super(base);
+        this.base = base;
+        changedRows = new long[(height + 63) >>> 6];
+        keys = new int[16];
+        values = new int[16];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    @Override
+    protected int getCell(int x, int y) {
+        if (!isRowChanged(y)) {
+            return base.getCell(x, y);
+        }
+        int slot = find(y * width + x);
+        return keys[slot] == EMPTY ? base.getCell(x, y) : values[slot];
+    }
+
+    @Override
+    protected void setCell(int x, int y, int agent) {
+        put(y * width + x, agent);
+        changedRows[y >>> 6] |= 1L << y;
+        invalidateReachability();
+    }
+
+    @Override
+    public int getCost(int x, int y) {
+        if (!isRowChanged(y)) {
+            return base.getCost(x, y);
+        }
+        // The keys of the costs follow the keys of the cells
+        int slot = find(width * height + y * width + x);
+        return keys[slot] == EMPTY ? base.getCost(x, y) : values[slot];
+    }
+
+    @Override
+    public void setCost(Position position, int cost) {
+        if (cost < 1 || cost > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("The cost must be from 1 to " + Byte.MAX_VALUE + ": " + cost);
+        }
+        put(width * height + index(position), cost);
+        changedRows[position.getY() >>> 6] |= 1L << position.getY();
+    }
+
+    private boolean isRowChanged(int y) {
+        return (changedRows[y >>> 6] & 1L << y) != 0;
+    }
+
+    /**
+     * @return - the base map of the overlay
+     */
+    public Map getBase() {
+        return base;
+    }
+
+    /**
+     * @return - the number of cells and costs changed by the overlay
+     */
+    public int getChangedCells() {
+        return size;
+    }
+
+    /**
+     * @param key - represents the cell, or the number of cells plus the cell for its cost
+     * @return - the slot of the key, or the empty slot where it would be added
+     */
+    private int find(int key) {
+        int slot = slot(key);
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = slot + 1 & keys.length - 1;
+        }
+        return slot;
+    }
+
+    private void put(int key, int value) {
+        int slot = find(key);
+        boolean added = keys[slot] == EMPTY;
+        keys[slot] = key;
+        values[slot] = value;
+        if (added && ++size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    /**
+     * Fibonacci hashing: the top bits of the product are the best mixed ones, so the slot is taken from them.
+     */
+    private int slot(int key) {
+        return key * 0x9E3779B9 >>> 32 - Integer.numberOfTrailingZeros(keys.length);
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                while (keys[slot] != EMPTY) {
+                    slot = slot + 1 & keys.length - 1;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
+
+/**
+ * A map kept in a file and mapped to the memory, so the cells are not on the heap and the map opens without reading it.
+ * The file starts with a header of {@link #HEADER_SIZE} bytes: the magic number, the version, the width, the height,
+ * the size of the tiles as a power of two, and the coordinates of the rock and the tortuga, -1 if there is none.
+ * The cells follow in square tiles, the tiles row by row and the cells of a tile row by row. Every cell is two bytes:
+ * the code of the agent with the number of perception zones covering the cell, as in {@link Map}, and the cost.
+ * The count takes the upper 5 bits of the first byte, up to 31 zones. A cell has 8 neighbors and every neighbor holds at most one enemy,
+ * so no cell is covered by more than 8 zones, however many enemies there are. The limit is still checked:
+ * an enemy whose zone does not fit throws an IllegalStateException and leaves the map unchanged.
+ * The Moore neighbors of a cell are in the same tile or in the next tile most of the time, so the search reads few pages.
+ * The file is mapped in chunks of whole tiles, because one mapped buffer can not be larger than 2 GB.
+ * A* keeps its state in a {@link SparseSearchState}, so the heap used by a search depends on the cells it reaches, not on the size of the map.
+ * The {@link ReachabilityIndex} would take 8 to 16 bytes of the heap for every cell, so {@link Map#solve(PathFinder)} does not build it
+ * and runs the search even if there is no route. The index is built only if it is asked for, e.g. by the {@link LandmarkHeuristic},
+ * whose tables are on the heap anyway. The cells are indexed by int, as in {@link Map}, so a map has at most {@link Integer#MAX_VALUE} cells.
+ */
+class MappedMap extends Map {
+    public static final int HEADER_SIZE = 64;
+    /**
+     * Tiles of 64 x 64 cells take 8 KB, two pages.
+     */
+    public static final int DEFAULT_TILE_SHIFT = 6;
+    private static final int MAGIC = 0x50464D50;
+    private static final int VERSION = 2;
+    private static final int CELL_SIZE = 2;
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    private final int tileShift;
+    private final int tileMask;
+    private final int tileBytes;
+    private final int tilesPerRow;
+    private final int tilesPerChunk;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] chunks;
+
+    private MappedMap(int width, int height, int tileShift, MappedByteBuffer header, MappedByteBuffer[] chunks) {
+        super(width, height, null);
+        this.tileShift = tileShift;
+        this.tileMask = (1 << tileShift) - 1;
+        this.tileBytes = CELL_SIZE << 2 * tileShift;
+        this.tilesPerRow = (width + tileMask) >> tileShift;
+        this.tilesPerChunk = (int) (CHUNK_SIZE / tileBytes);
+        this.header = header;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Creates a new file for the map of the given size, all cells are open water without agents.
+     *
+     * @param fileName  - represents the name of the file
+     * @param width     - represents the number of columns
+     * @param height    - represents the number of rows
+     * @param tileShift - represents the size of the tiles, a tile has 2^tileShift x 2^tileShift cells
+     * @return - the map opened for writing
+     * @throws IllegalArgumentException - if the map has more than {@link Integer#MAX_VALUE} cells
+     */
+    public static MappedMap create(String fileName, int width, int height, int tileShift) {
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A map has from 1 to " + Integer.MAX_VALUE + " cells: " + width + " x " + height);
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(tileShift).putInt(-1).putInt(-1).putInt(-1).putInt(-1);
+            header.clear();
+            channel.write(header, 0);
+            long tiles = (long) ((width + (1 << tileShift) - 1) >> tileShift) * ((height + (1 << tileShift) - 1) >> tileShift);
+            // The file is sparse until the cells are written, the empty cells read as zeros
+            channel.write(ByteBuffer.allocate(1), HEADER_SIZE + tiles * (CELL_SIZE << 2 * tileShift) - 1);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return open(fileName, true);
+    }
+
+    /**
+     * Writes any map to a new file.
+     *
+     * @param map       - represents the map
+     * @param fileName  - represents the name of the file
+     * @param tileShift - represents the size of the tiles, a tile has 2^tileShift x 2^tileShift cells
+     * @return - the map in the file opened for writing
+     */
+    public static MappedMap write(Map map, String fileName, int tileShift) {
+        MappedMap mapped = create(fileName, map.width, map.height, tileShift);
+        for (int y = 0; y < map.height; y++) {
+            for (int x = 0; x < map.width; x++) {
+                mapped.setCell(x, y, map.getCell(x, y));
+                if (map.getCost(x, y) != OPEN_WATER) {
+                    mapped.setCost(new Position(x, y), map.getCost(x, y));
+                }
+            }
+        }
+        mapped.setRock(map.rock);
+        mapped.setTortuga(map.tortuga);
+        return mapped;
+    }
+
+    /**
+     * Opens the map in the file.
+     *
+     * @param fileName - represents the name of the file
+     * @param writable - represents whether the cells may be changed, the changes are written to the file
+     * @return - the map
+     */
+    public static MappedMap open(String fileName, boolean writable) {
+        try (FileChannel channel = writable
+                ? FileChannel.open(Paths.get(fileName), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+            if (channel.size() < HEADER_SIZE) {
+                throw new RuntimeException("Not a map file: " + fileName);
+            }
+            MappedByteBuffer header = channel.map(mode, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new RuntimeException("Not a map file: " + fileName);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE) {
+                throw new RuntimeException("The map in the file has more cells than a map can index: " + fileName);
+            }
+            int tileShift = header.getInt();
+            int tileBytes = CELL_SIZE << 2 * tileShift;
+            long tiles = (long) ((width + (1 << tileShift) - 1) >> tileShift) * ((height + (1 << tileShift) - 1) >> tileShift);
+            long tilesPerChunk = CHUNK_SIZE / tileBytes;
+            if (channel.size() < HEADER_SIZE + tiles * tileBytes) {
+                throw new RuntimeException("The map file is truncated: " + fileName);
+            }
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((tiles + tilesPerChunk - 1) / tilesPerChunk)];
+            for (int i = 0; i < chunks.length; i++) {
+                long first = i * tilesPerChunk;
+                long size = Math.min(tilesPerChunk, tiles - first) * tileBytes;
+                chunks[i] = channel.map(mode, HEADER_SIZE + first * tileBytes, size);
+            }
+            MappedMap map = new MappedMap(width, height, tileShift, header, chunks);
+            map.rock = readPosition(header);
+            map.tortuga = readPosition(header);
+            return map;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Position readPosition(ByteBuffer header) {
+        int x = header.getInt();
+        int y = header.getInt();
+        return x < 0 ? null : new Position(x, y);
+    }
+
+    /**
+     * @return - the offset of the cell in its chunk, the chunk is in the upper 32 bits
+     */
+    private long locate(int x, int y) {
+        int tile = (y >> tileShift) * tilesPerRow + (x >> tileShift);
+        int offset = (tile % tilesPerChunk) * tileBytes + (((y & tileMask) << tileShift) + (x & tileMask)) * CELL_SIZE;
+        return (long) (tile / tilesPerChunk) << 32 | offset;
+    }
+
+    @Override
+    protected int getCell(int x, int y) {
+        long location = locate(x, y);
+        return chunks[(int) (location >>> 32)].get((int) location) & 0xFF;
+    }
+
+    @Override
+    protected int getMaxDanger() {
+        return 0xFF >>> AGENT_BITS;
+    }
+
+    @Override
+    protected void setCell(int x, int y, int cell) {
+        if (cell >>> Byte.SIZE != 0) {
+            throw new IllegalArgumentException("A cell of the map file is covered by at most " + getMaxDanger() + " perception zones");
+        }
+        long location = locate(x, y);
+        chunks[(int) (location >>> 32)].put((int) location, (byte) cell);
+        invalidateReachability();
+    }
+
+    @Override
+    public int getCost(int x, int y) {
+        long location = locate(x, y);
+        int cost = chunks[(int) (location >>> 32)].get((int) location + 1);
+        // The cells that were never written are open water
+        return cost == 0 ? OPEN_WATER : cost;
+    }
+
+    @Override
+    public void setCost(Position position, int cost) {
+        if (cost < 1 || cost > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("The cost must be from 1 to " + Byte.MAX_VALUE + ": " + cost);
+        }
+        long location = locate(position.getX(), position.getY());
+        chunks[(int) (location >>> 32)].put((int) location + 1, (byte) cost);
+    }
+
+    @Override
+    public void addRock(Position position) {
+        super.addRock(position);
+        setRock(rock);
+    }
+
+    @Override
+    public void addTortuga(Position position) {
+        super.addTortuga(position);
+        setTortuga(tortuga);
+    }
+
+    private void setRock(Position rock) {
+        this.rock = rock;
+        writeHeaderPosition(20, rock);
+    }
+
+    private void setTortuga(Position tortuga) {
+        this.tortuga = tortuga;
+        writeHeaderPosition(28, tortuga);
+    }
+
+    private void writeHeaderPosition(int offset, Position position) {
+        header.putInt(offset, position == null ? -1 : position.getX());
+        header.putInt(offset + 4, position == null ? -1 : position.getY());
+    }
+
+    /**
+     * Writes the changed cells to the file.
+     */
+    public void force() {
+        header.force();
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    @Override
+    protected SearchState newSearchState() {
+        return new SparseSearchState();
+    }
+
+    @Override
+    protected boolean mayWin(Position jack, Position chest) {
+        // The search finds out itself that there is no route, with the heap of the cells it reaches
+        return true;
+    }
+}
+
+/**
+ * The connected components of the passable cells of a map, once as it is and once with all Krakens killed.
+ * Killing a Kraken only clears cells, so a route that can not be found on the map with all Krakens killed can not be found by any search.
+ * The components are labeled by one flood fill for each state, the state with the Kraken killed is labeled on the first query that needs it.
+ * After that every query takes constant time.
+ */
+class ReachabilityIndex {
+    private static final int BLOCKED = -1;
+    private static final int UNLABELED = -2;
+
+    private final Map map;
+    private final int[] components;
+    private int[] killedComponents;
+
+    /**
+     * Constructor for the ReachabilityIndex class.
+     *
+     * @param map - represents the map, the index is valid while the map is not changed
+     */
+    public ReachabilityIndex(Map map) {
+        this.map = map;
+        components = label(map);
+    }
+
+    /**
+     * Labels the connected components of the passable cells, the cells are connected to their Moore neighbors.
+     * Maps up to 64 cells wide are filled row by row on bitboards, wider maps by the breadth-first search.
+     *
+     * @param grid - represents the map
+     * @return - the component of every cell, -1 for the cells that can not be entered
+     */
+    private static int[] label(Map grid) {
+        int[] labels = new int[grid.width * grid.height];
+        Arrays.fill(labels, BLOCKED);
+        return grid.width <= Long.SIZE ? labelRows(grid, labels) : labelCells(grid, labels);
+    }
+
+    /**
+     * Labels the components on bitboards, one long for each row. A component grows from its first cell to the rows above and below
+     * and along the rows until it does not change.
+     */
+    private static int[] labelRows(Map grid, int[] labels) {
+        int height = grid.height;
+        // The passable cells that do not have a component yet
+        long[] open = new long[height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < grid.width; x++) {
+                if (grid.isPassable(x, y)) {
+                    open[y] |= 1L << x;
+                }
+            }
+        }
+        long[] component = new long[height];
+        int count = 0;
+        for (int seedY = 0; seedY < height; seedY++) {
+            while (open[seedY] != 0) {
+                component[seedY] = Long.lowestOneBit(open[seedY]);
+                int top = seedY;
+                int bottom = seedY;
+                boolean changed = true;
+                while (changed) {
+                    changed = false;
+                    for (int y = Math.max(top - 1, 0); y <= Math.min(bottom + 1, height - 1); y++) {
+                        long row = component[y] | (y > 0 ? component[y - 1] : 0) | (y < height - 1 ? component[y + 1] : 0);
+                        long grown = row & open[y];
+                        long previous;
+                        do {
+                            previous = grown;
+                            grown = (grown | grown << 1 | grown >>> 1 | row << 1 | row >>> 1) & open[y];
+                        } while (grown != previous);
+                        if (grown != component[y]) {
+                            component[y] = grown;
+                            changed = true;
+                            top = Math.min(top, y);
+                            bottom = Math.max(bottom, y);
+                        }
+                    }
+                }
+                for (int y = top; y <= bottom; y++) {
+                    for (long cells = component[y]; cells != 0; cells &= cells - 1) {
+                        labels[y * grid.width + Long.numberOfTrailingZeros(cells)] = count;
+                    }
+                    open[y] &= ~component[y];
+                    component[y] = 0;
+                }
+                count++;
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Labels the components by the breadth-first search from the first cell of every component.
+     */
+    private static int[] labelCells(Map grid, int[] labels) {
+        int width = grid.width;
+        for (int cell = 0; cell < labels.length; cell++) {
+            if (grid.isPassable(cell % width, cell / width)) {
+                labels[cell] = UNLABELED;
+            }
+        }
+        int[] queue = new int[labels.length];
+        int component = 0;
+        for (int cell = 0; cell < labels.length; cell++) {
+            if (labels[cell] != UNLABELED) {
+                continue;
+            }
+            int head = 0;
+            int tail = 0;
+            labels[cell] = component;
+            queue[tail++] = cell;
+            while (head < tail) {
+                int current = queue[head++];
+                int currentX = current % width;
+                int fromX = Math.max(currentX - 1, 0);
+                int toX = Math.min(currentX + 1, width - 1);
+                int fromY = Math.max(current / width - 1, 0);
+                int toY = Math.min(current / width + 1, grid.height - 1);
+                for (int y = fromY; y <= toY; y++) {
+                    for (int x = fromX; x <= toX; x++) {
+                        if (labels[y * width + x] == UNLABELED) {
+                            labels[y * width + x] = component;
+                            queue[tail++] = y * width + x;
+                        }
+                    }
+                }
+            }
+            component++;
+        }
+        return labels;
+    }
+
+    /**
+     * Checks whether any search can find a path from the start to the goal.
+     * The start and the goal may be blocked themselves, Jack leaves the start and enters the goal through their neighbors.
+     *
+     * @param start        - represents the start position
+     * @param goal         - represents the goal position
+     * @param krakenKilled - represents whether the Kraken may be killed on the way
+     * @return - false if the goal can not be reached, true if it may be reached
+     */
+    public boolean canReach(Position start, Position goal, boolean krakenKilled) {
+        if (Math.abs(start.getX() - goal.getX()) <= 1 && Math.abs(start.getY() - goal.getY()) <= 1) {
+            return true;
+        }
+        if (krakenKilled && killedComponents == null) {
+            killedComponents = label(map.killKrakens());
+        }
+        int[] labels = krakenKilled ? killedComponents : components;
+        int[] exits = new int[9];
+        int exitCount = touchedComponents(labels, start, exits);
+        int[] entries = new int[9];
+        int entryCount = touchedComponents(labels, goal, entries);
+        for (int i = 0; i < exitCount; i++) {
+            for (int j = 0; j < entryCount; j++) {
+                if (exits[i] == entries[j]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param x - represents the x coordinate of the cell
+     * @param y - represents the y coordinate of the cell
+     * @return - the component of the cell on the map as it is, -1 if the cell can not be entered
+     */
+    public int getComponent(int x, int y) {
+        return components[y * map.width + x];
+    }
+
+    /**
+     * Checks whether Jack may reach the chest directly or through the tortuga, as {@link Map#aStarRoute} and the backtracking search do.
+     *
+     * @param jack    - represents the position of Jack
+     * @param chest   - represents the position of the chest
+     * @param tortuga - represents the position of the tortuga, null if there is no tortuga
+     * @return - false if the chest can not be reached, true if it may be reached
+     */
+    public boolean canWin(Position jack, Position chest, Position tortuga) {
+        return canReach(jack, chest, false)
+                || tortuga != null && canReach(jack, tortuga, false) && canReach(tortuga, chest, true);
+    }
+
+    /**
+     * Collects the components Jack can be in right after leaving the cell or right before entering it.
+     *
+     * @param labels   - represents the components of the cells
+     * @param position - represents the cell
+     * @param touched  - represents the array for the components, at least 9 long
+     * @return - the number of the collected components
+     */
+    private int touchedComponents(int[] labels, Position position, int[] touched) {
+        int own = labels[map.index(position)];
+        if (own != BLOCKED) {
+            // All passable neighbors of a passable cell are in its component
+            touched[0] = own;
+            return 1;
+        }
+        int count = 0;
+        for (int i = -1; i <= 1; i++) {
+            for (int j = -1; j <= 1; j++) {
+                int x = position.getX() + i;
+                int y = position.getY() + j;
+                if (map.isPositionValid(x, y) && labels[y * map.width + x] != BLOCKED) {
+                    touched[count++] = labels[y * map.width + x];
+                }
+            }
+        }
+        return count;
+    }
+}
+
+/**
+ * The best path of the backtracking search shared by the fork tasks. The length is kept in an atomic integer,
+ * so every task prunes against the best path as soon as it is found.
+ * Among the paths of the same length the first path of the backtracking search wins, then the lexicographically smallest one,
+ * so the result does not depend on the order in which the tasks finish.
+ */
+class ForkBound {
+    private final AtomicInteger length;
+    private ArrayList<Position> path;
+    private boolean initial = true;
+
+    /**
+     * Constructor for the ForkBound class.
+     *
+     * @param path - represents the path found by the backtracking search before exploring the forks
+     */
+    public ForkBound(ArrayList<Position> path) {
+        this.path = path;
+        length = new AtomicInteger(path.size());
+    }
+
+    /**
+     * @return - the number of positions in the best path found so far
+     */
+    public int get() {
+        return length.get();
+    }
+
+    /**
+     * Offers a path that reaches the goal.
+     *
+     * @param candidate - represents the path
+     */
+    public void offer(ArrayList<Position> candidate) {
+        length.accumulateAndGet(candidate.size(), Math::min);
+        synchronized (this) {
+            if (candidate.size() < path.size() || candidate.size() == path.size() && !initial && compare(candidate, path) < 0) {
+                path = candidate;
+                initial = false;
+            }
+        }
+    }
+
+    public synchronized ArrayList<Position> getPath() {
+        return path;
+    }
+
+    /**
+     * Compares the paths of the same length position by position.
+     */
+    private static int compare(ArrayList<Position> first, ArrayList<Position> second) {
+        for (int i = 0; i < first.size(); i++) {
+            int difference = first.get(i).getY() != second.get(i).getY() ? first.get(i).getY() - second.get(i).getY() : first.get(i).getX() - second.get(i).getX();
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+}
+
+/**
+ * This task is used to find the best path from the fork of the backtracking search.
+ * It moves towards the goal like the backtracking search does. Every other neighbor that is as close to the goal as the chosen one
+ * is a new fork, it is explored by a subtask that other threads can steal.
+ * The path is abandoned as soon as it can not be shorter than the best path found by any task.
+ * Following every tie makes the number of tasks exponential in the number of ties, so only the tasks above {@link #MAX_DEPTH} fork,
+ * the deeper ones follow the closest neighbor only, like the forks of the original backtracking search did.
+ */
+class ForkSearchTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    /**
+     * The forks of the main path have the depth 1, the forks of their paths have the depth 2 and so on.
+     */
+    public static final int MAX_DEPTH = 4;
+    /**
+     * With a single worker thread there is nobody to steal the forks, so they are explored in the same thread.
+     */
+    public static final boolean PARALLEL = ForkJoinPool.getCommonPoolParallelism() > 1;
+
+    private final transient Map map;
+    private final ArrayList<Position> path;
+    private final Position goal;
+    private final transient ForkBound bound;
+    private final boolean parallel;
+    private final int depth;
+    private int expansions;
+
+    /**
+     * Constructor for the ForkSearchTask class.
+     *
+     * @param map      - represents the map, it is only read by the task
+     * @param path     - represents the path to the fork including the fork
+     * @param goal     - represents the goal
+     * @param bound    - represents the best path shared by all tasks
+     * @param parallel - represents whether the subtasks may be forked, otherwise they are explored in the same thread
+     * @param depth    - represents the number of forks on the path
+     */
+    public ForkSearchTask(Map map, ArrayList<Position> path, Position goal, ForkBound bound, boolean parallel, int depth) {
+        this.map = map;
+        this.path = path;
+        this.goal = goal;
+        this.bound = bound;
+        this.parallel = parallel;
+        this.depth = depth;
+    }
+
+    /**
+     * Forks with fewer steps to the goal than a quarter of the width and the height of the map are explored in the same thread,
+     * handing them out costs more than exploring them.
+     *
+     * @param map - represents the map
+     * @return - the distance to the goal below which the forks are not handed out
+     */
+    public static int sequentialThreshold(Map map) {
+        return Math.max(2, (map.width + map.height) / 4);
+    }
+
+    @Override
+    protected void compute() {
+        ArrayList<ForkSearchTask> subtasks = new ArrayList<>();
+        Position current = path.get(path.size() - 1);
+        while (!current.equals(goal)) {
+            // Every step adds at least one position, so the path can not be shorter than that
+            if (path.size() + Math.max(Math.abs(current.getX() - goal.getX()), Math.abs(current.getY() - goal.getY())) > bound.get()) {
+                break;
+            }
+            expansions++;
+            Position best = null;
+            int bestDistance = 0;
+            ArrayList<Position> ties = new ArrayList<>();
+            for (Position neighbor : map.getMooreNeighbors(current)) {
+                if (path.contains(neighbor) || !map.isPassable(neighbor))
+                    continue;
+                int distance = Math.abs(neighbor.getX() - goal.getX()) + Math.abs(neighbor.getY() - goal.getY());
+                if (best == null || distance < bestDistance) {
+                    best = neighbor;
+                    bestDistance = distance;
+                    ties.clear();
+                } else if (distance == bestDistance) {
+                    ties.add(neighbor);
+                }
+            }
+            if (best == null) {
+                // Dead end
+                break;
+            }
+            for (int i = 0; depth < MAX_DEPTH && i < ties.size(); i++) {
+                ArrayList<Position> newPathForFork = new ArrayList<>(path);
+                newPathForFork.add(ties.get(i));
+                ForkSearchTask subtask = new ForkSearchTask(map, newPathForFork, goal, bound, parallel, depth + 1);
+                if (!parallel || bestDistance < sequentialThreshold(map)) {
+                    subtask.compute();
+                    expansions += subtask.getExpansions();
+                } else {
+                    subtask.fork();
+                    subtasks.add(subtask);
+                }
+            }
+            path.add(best);
+            current = best;
+        }
+        if (current.equals(goal)) {
+            bound.offer(path);
+        }
+        for (int i = subtasks.size() - 1; i >= 0; i--) {
+            subtasks.get(i).join();
+            expansions += subtasks.get(i).getExpansions();
+        }
+    }
+
+    /**
+     * @return - the number of expanded positions of the task and its subtasks, valid after the task is done
+     */
+    public int getExpansions() {
+        return expansions;
+    }
+}
+
+/**
+ * The result of one search: the engine that found it, the route, the time and the number of expanded positions.
+ */
+class SearchResult {
+    private final String engine;
+    private final ArrayList<Position> path;
+    private final long elapsedTime;
+    private final int expansions;
+
+    /**
+     * Constructor for the SearchResult class.
+     *
+     * @param engine      - represents the name of the engine
+     * @param path        - represents the route from Jack to the chest, null if there is no route
+     * @param elapsedTime - represents the time of the search in nanoseconds
+     * @param expansions  - represents the number of expanded positions
+     */
+    public SearchResult(String engine, ArrayList<Position> path, long elapsedTime, int expansions) {
+        this.engine = engine;
+        this.path = path;
+        this.elapsedTime = elapsedTime;
+        this.expansions = expansions;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public ArrayList<Position> getPath() {
+        return path;
+    }
+
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+    public int getExpansions() {
+        return expansions;
+    }
+
+    public boolean isWin() {
+        return path != null;
+    }
+}
+
+/**
+ * A search engine that finds the route from Jack to the chest.
+ * Engines are looked up by name in the {@link PathFinderRegistry}.
+ */
+interface PathFinder {
+    /**
+     * @return - the name of the engine
+     */
+    String getName();
+
+    /**
+     * Finds the route from Jack to the chest. The engine only reads the map, the Kraken is killed in an overlay.
+     *
+     * @param map   - represents the map
+     * @param jack  - represents the position of Jack
+     * @param chest - represents the position of the chest
+     * @return - the route including both ends, or null if there is no route
+     */
+    ArrayList<Position> findPath(Map map, Position jack, Position chest);
+
+    /**
+     * @return - whether the engine always finds the shortest route, as A* with an admissible heuristic does
+     */
+    default boolean isOptimal() {
+        return false;
+    }
+}
+
+/**
+ * The A* engine with the heuristic of the map.
+ */
+class AStarPathFinder implements PathFinder {
+    @Override
+    public String getName() {
+        return "AStar";
+    }
+
+    @Override
+    public ArrayList<Position> findPath(Map map, Position jack, Position chest) {
+        return map.aStarRoute(jack, chest, map.getHeuristic());
+    }
+
+    @Override
+    public boolean isOptimal() {
+        return true;
+    }
+}
+
+/**
+ * The backtracking engine.
+ */
+class BacktrackingPathFinder implements PathFinder {
+    @Override
+    public String getName() {
+        return "Backtracking";
+    }
+
+    @Override
+    public ArrayList<Position> findPath(Map map, Position jack, Position chest) {
+        ArrayList<Position> solution = map.backtrackingSearch(jack, chest);
+        if (solution != null && solution.get(solution.size() - 1) != null && solution.get(solution.size() - 1).equals(chest)) {
+            return solution;
+        }
+        return null;
+    }
+}
+
+/**
+ * The registry of the search engines. The engines are kept in the order of registration.
+ */
+class PathFinderRegistry {
+    private static final LinkedHashMap<String, PathFinder> finders = new LinkedHashMap<>();
+
+    static {
+        register(new AStarPathFinder());
+        register(new BacktrackingPathFinder());
+        register(new AdaptivePathFinder());
+    }
+
+    /**
+     * Registers the engine, an engine with the same name is replaced.
+     *
+     * @param finder - represents the engine
+     */
+    public static void register(PathFinder finder) {
+        finders.put(finder.getName(), finder);
+    }
+
+    /**
+     * @param name - represents the name of the engine
+     * @return - the engine with the given name
+     */
+    public static PathFinder get(String name) {
+        PathFinder finder = finders.get(name);
+        if (finder == null) {
+            throw new RuntimeException("Unknown path finder: " + name);
+        }
+        return finder;
+    }
+
+    /**
+     * @return - all registered engines
+     */
+    public static ArrayList<PathFinder> getAll() {
+        return new ArrayList<>(finders.values());
+    }
+}
+
+/**
+ * Cheap features of a map that are used to choose the engine: the size, the density of obstacles
+ * and whether the straight line from Jack to the chest crosses an obstacle.
+ */
+class MapFeatures {
+    private final int size;
+    private final double obstacleDensity;
+    private final boolean directRouteBlocked;
+
+    /**
+     * Constructor for the MapFeatures class.
+     *
+     * @param size               - represents the number of cells
+     * @param obstacleDensity    - represents the share of cells Jack can not step on
+     * @param directRouteBlocked - represents whether the straight line from Jack to the chest is blocked
+     */
+    public MapFeatures(int size, double obstacleDensity, boolean directRouteBlocked) {
+        this.size = size;
+        this.obstacleDensity = obstacleDensity;
+        this.directRouteBlocked = directRouteBlocked;
+    }
+
+    /**
+     * Computes the features of the map.
+     *
+     * @param map   - represents the map
+     * @param jack  - represents the position of Jack
+     * @param chest - represents the position of the chest
+     * @return - the features of the map
+     */
+    public static MapFeatures of(Map map, Position jack, Position chest) {
+        int obstacles = 0;
+        for (int i = 0; i < map.height; i++) {
+            for (int j = 0; j < map.width; j++) {
+                if (!map.isPassable(j, i)) {
+                    obstacles++;
+                }
+            }
+        }
+        // Walk along the straight line from Jack to the chest (Bresenham's algorithm)
+        boolean blocked = false;
+        int x = jack.getX();
+        int y = jack.getY();
+        int dx = Math.abs(chest.getX() - x);
+        int dy = -Math.abs(chest.getY() - y);
+        int stepX = x < chest.getX() ? 1 : -1;
+        int stepY = y < chest.getY() ? 1 : -1;
+        int error = dx + dy;
+        while (x != chest.getX() || y != chest.getY()) {
+            int doubleError = 2 * error;
+            if (doubleError >= dy) {
+                error += dy;
+                x += stepX;
+            }
+            if (doubleError <= dx) {
+                error += dx;
+                y += stepY;
+            }
+            if (!map.isPassable(x, y)) {
+                blocked = true;
+                break;
+            }
+        }
+        int size = map.width * map.height;
+        return new MapFeatures(size, (double) obstacles / size, blocked);
+    }
+
+    /**
+     * @return - the key of the group of similar maps, maps with the same key are expected to have similar latency
+     */
+    public String getBucket() {
+        return size + "/" + (int) (obstacleDensity * 20) + "/" + directRouteBlocked;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public double getObstacleDensity() {
+        return obstacleDensity;
+    }
+
+    public boolean isDirectRouteBlocked() {
+        return directRouteBlocked;
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size + " density=" + Math.round(obstacleDensity * 100) / 100.0 + " blocked=" + directRouteBlocked;
+    }
+}
+
+/**
+ * The record of one choice of the adaptive engine.
+ */
+class RoutingDecision {
+    private final MapFeatures features;
+    private final String engine;
+    private final double expectedTime;
+
+    /**
+     * Constructor for the RoutingDecision class.
+     *
+     * @param features     - represents the features of the map
+     * @param engine       - represents the name of the chosen engine
+     * @param expectedTime - represents the expected time in nanoseconds, -1 if the engine was not calibrated
+     */
+    public RoutingDecision(MapFeatures features, String engine, double expectedTime) {
+        this.features = features;
+        this.engine = engine;
+        this.expectedTime = expectedTime;
+    }
+
+    public MapFeatures getFeatures() {
+        return features;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public double getExpectedTime() {
+        return expectedTime;
+    }
+
+    @Override
+    public String toString() {
+        return features + " -> " + engine + " (expected " + Math.round(expectedTime / 10.0) / 100.0 + " us)";
+    }
+}
+
+/**
+ * The engine that sends each query to the registered engine with the lowest expected latency for maps with the same features.
+ * The latencies are measured by {@link #calibrate(ArrayList)}. Before the calibration all queries go to the first registered engine.
+ * The engines do not return the same routes: the backtracking search may find a longer route or none at all.
+ * So the calibration also compares the length of every route with the one of the first optimal engine, and a bucket is routed
+ * only to the optimal engines and to the engines that found a route of the same length on every calibration map of the bucket.
+ * The calibration maps are a sample, so the routing may still change the result on a map where the chosen engine is not optimal.
+ * The last {@link #MAX_DECISIONS} decisions are kept, {@link #drainDecisions()} takes them away.
+ */
+class AdaptivePathFinder implements PathFinder {
+    /**
+     * The number of decisions kept, the older ones are dropped.
+     */
+    public static final int MAX_DECISIONS = 1 << 16;
+    /**
+     * Total time, number of runs and number of routes of a different length than the optimal one of every engine for every bucket of features.
+     */
+    private final HashMap<String, HashMap<String, double[]>> latencies = new HashMap<>();
+    private final ArrayDeque<RoutingDecision> decisions = new ArrayDeque<>();
+
+    @Override
+    public String getName() {
+        return "Adaptive";
+    }
+
+    /**
+     * Runs every engine on every map and remembers the mean time and the number of routes that are not the shortest for each bucket of features.
+     * The maps are built twice for every engine, the first run warms up the engine.
+     *
+     * @param scenarios - represents the agents of the maps, as returned by {@link Test#generateMap(Map)}
+     */
+    public void calibrate(ArrayList<ArrayList<Position>> scenarios) {
+        // The lengths of the routes of the first optimal engine, -1 if there is no route
+        int[] shortest = new int[scenarios.size()];
+        PathFinder reference = null;
+        for (PathFinder finder : candidates()) {
+            if (finder.isOptimal()) {
+                reference = finder;
+                break;
+            }
+        }
+        for (int k = 0; k < scenarios.size() && reference != null; k++) {
+            Map map = new Map();
+            map.addAgents(scenarios.get(k));
+            ArrayList<Position> path = map.solve(reference).getPath();
+            shortest[k] = path == null ? -1 : path.size() - 1;
+        }
+        for (PathFinder finder : candidates()) {
+            for (int run = 0; run < 2; run++) {
+                for (int k = 0; k < scenarios.size(); k++) {
+                    ArrayList<Position> agents = scenarios.get(k);
+                    Map map = new Map();
+                    map.addAgents(agents);
+                    if (map.getAgent(0, 0) == -1) {
+                        continue;
+                    }
+                    String bucket = MapFeatures.of(map, agents.get(0), agents.get(4)).getBucket();
+                    SearchResult result = map.solve(finder);
+                    if (run == 1) {
+                        double[] latency = latencies.computeIfAbsent(bucket, key -> new HashMap<>()).computeIfAbsent(finder.getName(), key -> new double[3]);
+                        latency[0] += result.getElapsedTime();
+                        latency[1]++;
+                        if (reference != null && (result.isWin() ? result.getPath().size() - 1 : -1) != shortest[k]) {
+                            latency[2]++;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public ArrayList<Position> findPath(Map map, Position jack, Position chest) {
+        MapFeatures features = MapFeatures.of(map, jack, chest);
+        HashMap<String, double[]> bucket = latencies.get(features.getBucket());
+        PathFinder chosen = null;
+        double expectedTime = -1;
+        if (bucket == null) {
+            // Unknown kind of map, use the mean over all buckets
+            bucket = new HashMap<>();
+            for (HashMap<String, double[]> other : latencies.values()) {
+                for (java.util.Map.Entry<String, double[]> entry : other.entrySet()) {
+                    double[] latency = bucket.computeIfAbsent(entry.getKey(), key -> new double[3]);
+                    latency[0] += entry.getValue()[0];
+                    latency[1] += entry.getValue()[1];
+                    latency[2] += entry.getValue()[2];
+                }
+            }
+        }
+        for (PathFinder finder : candidates()) {
+            double[] latency = bucket.get(finder.getName());
+            if (latency == null || !finder.isOptimal() && latency[2] > 0) {
+                // Not calibrated, or it found a longer route or none on some map of the bucket
+                continue;
+            }
+            double mean = latency[0] / latency[1];
+            if (chosen == null || mean < expectedTime) {
+                chosen = finder;
+                expectedTime = mean;
+            }
+        }
+        if (chosen == null) {
+            chosen = candidates().get(0);
+        }
+        synchronized (decisions) {
+            if (decisions.size() == MAX_DECISIONS) {
+                decisions.poll();
+            }
+            decisions.add(new RoutingDecision(features, chosen.getName(), expectedTime));
+        }
+        return chosen.findPath(map, jack, chest);
+    }
+
+    /**
+     * @return - the last {@link #MAX_DECISIONS} decisions, in order
+     */
+    public ArrayList<RoutingDecision> getDecisions() {
+        synchronized (decisions) {
+            return new ArrayList<>(decisions);
+        }
+    }
+
+    /**
+     * @return - the kept decisions in order, they are removed from the engine
+     */
+    public ArrayList<RoutingDecision> drainDecisions() {
+        synchronized (decisions) {
+            ArrayList<RoutingDecision> drained = new ArrayList<>(decisions);
+            decisions.clear();
+            return drained;
+        }
+    }
+
+    /**
+     * @return - the registered engines except the adaptive ones
+     */
+    private ArrayList<PathFinder> candidates() {
+        ArrayList<PathFinder> candidates = new ArrayList<>();
+        for (PathFinder finder : PathFinderRegistry.getAll()) {
+            if (!(finder instanceof AdaptivePathFinder)) {
+                candidates.add(finder);
+            }
+        }
+        return candidates;
+    }
+}
+
+/**
+ * The flight recorder event of one search.
+ * It is recorded only while a flight recording is running, e.g. with -XX:StartFlightRecording:filename=solver.jfr
+ */
+@Name("pathfinder.Search")
+@Label("Search")
+@Category("Path Finder")
+@StackTrace(false)
+class SearchEvent extends Event {
+    @Label("Engine")
+    String engine;
+    @Label("Win")
+    boolean win;
+    @Label("Path Length")
+    int pathLength;
+    @Label("Expansions")
+    int expansions;
+    @Label("Skipped")
+    @Description("The chest can not be reached, so the search was not run")
+    boolean skipped;
+    @Label("Leg")
+    @Description("One search between two positions, the route it belongs to may have an event of its own")
+    boolean leg;
+
+    /**
+     * Commits the event of a finished search and adds the search to the metrics. Every search entry point records its searches here:
+     * the routes of {@link Map#solve(PathFinder)}, the waypoint routes and the batches. The single searches of A* and of the backtracking search
+     * are recorded by {@link #recordLeg}, so a route is counted once.
+     *
+     * @param event       - represents the event begun when the search started
+     * @param engine      - represents the name of the engine
+     * @param pathLength  - represents the number of steps of the path, -1 if there is no path
+     * @param elapsedTime - represents the time of the search in nanoseconds
+     * @param expansions  - represents the number of expanded positions
+     * @param skipped     - represents whether the search was not run because the chest can not be reached
+     */
+    static void record(SearchEvent event, String engine, int pathLength, long elapsedTime, int expansions, boolean skipped) {
+        commit(event, engine, pathLength, expansions, skipped, false);
+        if (SolverMetrics.ENABLED) {
+            SolverMetrics.record(engine, pathLength >= 0, elapsedTime, expansions, skipped);
+        }
+    }
+
+    /**
+     * Commits the event of one search between two positions, e.g. a leg of a route, and adds it to the metrics of the legs.
+     *
+     * @param event       - represents the event begun when the search started
+     * @param engine      - represents the name of the search
+     * @param pathLength  - represents the number of steps of the path, -1 if there is no path
+     * @param elapsedTime - represents the time of the search in nanoseconds
+     * @param expansions  - represents the number of expanded positions
+     */
+    static void recordLeg(SearchEvent event, String engine, int pathLength, long elapsedTime, int expansions) {
+        commit(event, engine, pathLength, expansions, false, true);
+        if (SolverMetrics.ENABLED) {
+            SolverMetrics.recordLeg(engine, pathLength >= 0, elapsedTime, expansions);
+        }
+    }
+
+    private static void commit(SearchEvent event, String engine, int pathLength, int expansions, boolean skipped, boolean leg) {
+        if (event.shouldCommit()) {
+            event.engine = engine;
+            event.win = pathLength >= 0;
+            event.pathLength = pathLength;
+            event.expansions = expansions;
+            event.skipped = skipped;
+            event.leg = leg;
+            event.commit();
+        }
+    }
+}
+
+/**
+ * The flight recorder event of one batch of {@link Test#analysis()}.
+ */
+@Name("pathfinder.AnalysisBatch")
+@Label("Analysis Batch")
+@Category("Path Finder")
+@StackTrace(false)
+class AnalysisBatchEvent extends Event {
+    @Label("Maps")
+    int maps;
+    @Label("A* Wins")
+    int aStarWins;
+    @Label("Backtracking Wins")
+    int backtrackingWins;
+    @Label("Skipped Searches")
+    int skippedSearches;
+}
+
+/**
+ * Counters and latency histograms of the searches for every engine, kept while the solver runs.
+ * The metrics are collected only if the solver is started with -Dpathfinder.metrics=true, otherwise the searches do not touch them.
+ * The snapshot can be dumped at any time, with -Dpathfinder.metrics.period=N it is also printed to the standard error every N seconds
+ * and with -Dpathfinder.metrics.file=NAME it is written to the file when the solver exits.
+ * The single searches that make up the routes are kept apart from the routes, so every query is counted once.
+ */
+class SolverMetrics {
+    public static final boolean ENABLED = Boolean.getBoolean("pathfinder.metrics");
+
+    private static final ConcurrentHashMap<String, EngineMetrics> engines = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, EngineMetrics> legs = new ConcurrentHashMap<>();
+
+    static {
+        long period = Long.getLong("pathfinder.metrics.period", 0);
+        if (ENABLED && period > 0) {
+            ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "solver-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            poller.scheduleAtFixedRate(() -> System.err.print(snapshot()), period, period, TimeUnit.SECONDS);
+        }
+        String file = System.getProperty("pathfinder.metrics.file");
+        if (ENABLED && file != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> dump(file), "solver-metrics-dump"));
+        }
+    }
+
+    /**
+     * Adds the search to the metrics of its engine.
+     *
+     * @param engine      - represents the name of the engine
+     * @param win         - represents whether the search found a path
+     * @param elapsedTime - represents the time of the search in nanoseconds
+     * @param expansions  - represents the number of expanded positions
+     * @param skipped     - represents whether the search was not run because the chest can not be reached
+     */
+    public static void record(String engine, boolean win, long elapsedTime, int expansions, boolean skipped) {
+        engines.computeIfAbsent(engine, name -> new EngineMetrics()).record(win, elapsedTime, expansions, skipped);
+    }
+
+    /**
+     * Adds one search between two positions to the metrics of the legs.
+     *
+     * @param engine      - represents the name of the search
+     * @param win         - represents whether the search found a path
+     * @param elapsedTime - represents the time of the search in nanoseconds
+     * @param expansions  - represents the number of expanded positions
+     */
+    public static void recordLeg(String engine, boolean win, long elapsedTime, int expansions) {
+        legs.computeIfAbsent(engine, name -> new EngineMetrics()).record(win, elapsedTime, expansions, false);
+    }
+
+    /**
+     * @return - the metrics of all engines as text, one line for every engine, then one line for every kind of legs
+     */
+    public static String snapshot() {
+        StringBuilder builder = new StringBuilder();
+        for (String name : new TreeSet<>(engines.keySet())) {
+            builder.append(name).append(": ").append(engines.get(name)).append("\n");
+        }
+        for (String name : new TreeSet<>(legs.keySet())) {
+            builder.append(name).append(" legs: ").append(legs.get(name)).append("\n");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Writes the snapshot of the metrics to a file.
+     *
+     * @param fileName - represents the name of the file
+     */
+    public static void dump(String fileName) {
+        try (FileWriter writer = new FileWriter(fileName)) {
+            writer.write(snapshot());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Forgets all collected metrics.
+     */
+    public static void reset() {
+        engines.clear();
+        legs.clear();
+    }
+}
+
+/**
+ * The metrics of one engine. The counters can be updated by many threads at the same time.
+ * The latencies are kept in a histogram with a bucket for every power of two nanoseconds.
+ */
+class EngineMetrics {
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder wins = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder expansions = new LongAdder();
+    private final LongAdder elapsedTime = new LongAdder();
+    private final AtomicLongArray latencies = new AtomicLongArray(Long.SIZE);
+
+    /**
+     * Adds the search to the metrics.
+     *
+     * @param win         - represents whether the search found a path
+     * @param elapsedTime - represents the time of the search in nanoseconds
+     * @param expansions  - represents the number of expanded positions
+     * @param skipped     - represents whether the search was not run because the chest can not be reached
+     */
+    public void record(boolean win, long elapsedTime, int expansions, boolean skipped) {
+        searches.increment();
+        if (win) {
+            wins.increment();
+        }
+        if (skipped) {
+            this.skipped.increment();
+        }
+        this.expansions.add(expansions);
+        this.elapsedTime.add(elapsedTime);
+        latencies.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(elapsedTime));
+    }
+
+    /**
+     * Estimates the latency below which the given share of the searches finished.
+     *
+     * @param share - represents the share of the searches, between 0 and 1
+     * @return - the upper bound of the bucket of the latency in nanoseconds
+     */
+    public long percentile(double share) {
+        long total = 0;
+        for (int i = 0; i < latencies.length(); i++) {
+            total += latencies.get(i);
+        }
+        long seen = 0;
+        for (int i = 0; i < latencies.length(); i++) {
+            seen += latencies.get(i);
+            if (seen > 0 && seen >= share * total) {
+                return i == 0 ? 0 : (1L << i) - 1;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        long count = Math.max(searches.sum(), 1);
+        return searches.sum() + " searches, " + wins.sum() + " wins, " + skipped.sum() + " skipped, "
+                + (double) expansions.sum() / count + " mean expansions, "
+                + elapsedTime.sum() / 1000.0 / count + " us mean, "
+                + "p50 < " + percentile(0.5) / 1000.0 + " us, p90 < " + percentile(0.9) / 1000.0 + " us, p99 < " + percentile(0.99) / 1000.0 + " us";
+    }
+}
+
+/**
+ * The best result the anytime planner found before it finished or ran out of time.
+ */
+class AnytimeResult {
+    private final ArrayList<Position> path;
+    private final double bound;
+    private final int searches;
+    private final boolean finished;
+
+    /**
+     * Constructor for the AnytimeResult class.
+     *
+     * @param path     - represents the path from the start to the goal including both ends, null if no path was found
+     * @param bound    - represents the weight of the last finished search, the path is at most bound times longer than the shortest one
+     * @param searches - represents the number of finished searches
+     * @param finished - represents whether the planner finished before the deadline, i.e. the path is the shortest or there is no path
+     */
+    public AnytimeResult(ArrayList<Position> path, double bound, int searches, boolean finished) {
+        this.path = path;
+        this.bound = bound;
+        this.searches = searches;
+        this.finished = finished;
+    }
+
+    public ArrayList<Position> getPath() {
+        return path;
+    }
+
+    public double getBound() {
+        return bound;
+    }
+
+    public int getSearches() {
+        return searches;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+}
+
+/**
+ * A running anytime search. The result completes at the deadline at the latest with the best path found so far, the search can be cancelled earlier.
+ */
+class AnytimeSearch {
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private volatile AnytimeResult best = new AnytimeResult(null, Double.POSITIVE_INFINITY, 0, false);
+    private CompletableFuture<AnytimeResult> result;
+
+    /**
+     * Stops the search. The result completes with the best path found so far.
+     */
+    public void cancel() {
+        cancelled.set(true);
+        result.complete(best);
+    }
+
+    /**
+     * @return - the best result found so far, it is not finished
+     */
+    public AnytimeResult getBest() {
+        return best;
+    }
+
+    void setBest(AnytimeResult best) {
+        this.best = best;
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    public CompletableFuture<AnytimeResult> getResult() {
+        return result;
+    }
+
+    void setResult(CompletableFuture<AnytimeResult> result) {
+        this.result = result;
+    }
+}
+
+/**
+ * Anytime planner based on the weighted A*. The first search uses a large weight and finds a path quickly,
+ * every next search lowers the weight while there is time left, until the weight is 1 and the path is the shortest.
+ * Every search starts from scratch, the searches on a map are cheap compared to the bookkeeping of ARA*.
+ * Every search plans the same route as {@link Map#aStarRoute(Position, Position, Heuristic)}: directly to the goal, or through the tortuga if the goal is not reachable.
+ * The planner does not change the cells of the map, the Kraken is killed in an overlay. But the searches reset and count the expansions
+ * of the map, see {@link Map#getExpansions()}, so the count is wrong while other searches run on the same map, and the heuristic of the map
+ * is called from the thread of the planner. The table heuristic fills its tables in a concurrent map and the other heuristics keep no state.
+ * The deadline is best effort: a timer completes the result when the budget runs out and the search checks the deadline before every expansion,
+ * so the result comes later than the budget by the delay of the timer thread, a few milliseconds on a busy machine.
+ */
+class AnytimePlanner {
+    private final double initialWeight;
+    private final double weightStep;
+
+    /**
+     * Constructor for the planner that starts with the weight 3 and lowers it by 0.5.
+     */
+    public AnytimePlanner() {
+        this(3.0, 0.5);
+    }
+
+    /**
+     * Constructor for the AnytimePlanner class.
+     *
+     * @param initialWeight - represents the weight of the first search
+     * @param weightStep    - represents how much the weight is lowered after each search
+     */
+    public AnytimePlanner(double initialWeight, double weightStep) {
+        this.initialWeight = initialWeight;
+        this.weightStep = weightStep;
+    }
+
+    /**
+     * Starts the planning in the background. The result completes at the deadline even if a search is still running,
+     * the search sees the deadline at its next expansion and stops. The deadline is not exact, see the class.
+     *
+     * @param map          - represents the map
+     * @param start        - represents the start position
+     * @param goal         - represents the goal position
+     * @param budgetMillis - represents the time budget in milliseconds
+     * @return - the running search
+     */
+    public AnytimeSearch planAsync(Map map, Position start, Position goal, long budgetMillis) {
+        AnytimeSearch search = new AnytimeSearch();
+        long deadline = System.nanoTime() + budgetMillis * 1000000;
+        CompletableFuture<AnytimeResult> result = new CompletableFuture<>();
+        search.setResult(result);
+        // The timer thread completes the result itself, so a busy common pool can not delay it
+        CompletableFuture.delayedExecutor(budgetMillis, TimeUnit.MILLISECONDS, Runnable::run).execute(() -> result.complete(search.getBest()));
+        CompletableFuture.runAsync(() -> result.complete(plan(map, start, goal, () -> search.isCancelled() || System.nanoTime() > deadline, search::setBest)));
+        return search;
+    }
+
+    /**
+     * Plans in the calling thread.
+     *
+     * @param map   - represents the map
+     * @param start - represents the start position
+     * @param goal  - represents the goal position
+     * @param stop  - is checked during the searches, the planning stops as soon as it returns true
+     * @return - the best result found
+     */
+    public AnytimeResult plan(Map map, Position start, Position goal, BooleanSupplier stop) {
+        return plan(map, start, goal, stop, result -> {
+        });
+    }
+
+    /**
+     * Plans in the calling thread and reports every improved path.
+     *
+     * @param map      - represents the map
+     * @param start    - represents the start position
+     * @param goal     - represents the goal position
+     * @param stop     - is checked during the searches, the planning stops as soon as it returns true
+     * @param progress - receives the unfinished result after every search that found a path
+     * @return - the best result found
+     */
+    public AnytimeResult plan(Map map, Position start, Position goal, BooleanSupplier stop, Consumer<AnytimeResult> progress) {
+        ArrayList<Position> best = null;
+        double bound = Double.POSITIVE_INFINITY;
+        int searches = 0;
+        double weight = initialWeight;
+        while (true) {
+            ArrayList<Position> path;
+            try {
+                path = map.aStarRoute(start, goal, new WeightedHeuristic(map.getHeuristic(), weight), stop);
+            } catch (CancellationException e) {
+                return new AnytimeResult(best, bound, searches, false);
+            }
+            searches++;
+            if (path == null) {
+                // The weight does not change the set of reachable positions, so there is no path at all
+                return new AnytimeResult(null, bound, searches, true);
+            }
+            if (best == null || path.size() < best.size()) {
+                best = path;
+            }
+            bound = weight;
+            progress.accept(new AnytimeResult(best, bound, searches, false));
+            if (weight <= 1.0) {
+                return new AnytimeResult(best, 1.0, searches, true);
+            }
+            weight = Math.max(1.0, weight - weightStep);
+        }
+    }
+}
+
+/**
+ * The route through several waypoints found by the {@link WaypointPlanner}.
+ */
+class WaypointRoute {
+    private final ArrayList<Position> order;
+    private final ArrayList<Position> path;
+    private final int cost;
+    private final boolean optimal;
+
+    /**
+     * Constructor for the WaypointRoute class.
+     *
+     * @param order   - represents the waypoints in the order they are visited, without the start and the end
+     * @param path    - represents the path from the start through all waypoints including both ends
+     * @param cost    - represents the cost of the path
+     * @param optimal - represents whether the order was found by the exact search, i.e. no other order is cheaper
+     */
+    public WaypointRoute(ArrayList<Position> order, ArrayList<Position> path, int cost, boolean optimal) {
+        this.order = order;
+        this.path = path;
+        this.cost = cost;
+        this.optimal = optimal;
+    }
+
+    public ArrayList<Position> getOrder() {
+        return order;
+    }
+
+    public ArrayList<Position> getPath() {
+        return path;
+    }
+
+    public int getCost() {
+        return cost;
+    }
+
+    public boolean isOptimal() {
+        return optimal;
+    }
+}
+
+/**
+ * Planner of the routes that visit several waypoints, e.g. several chests or ports, in the cheapest order.
+ * The costs between all pairs of waypoints are found once, by one search from every waypoint to all cells of the map,
+ * only the costs are kept and the paths of the legs of the chosen order are found by A* afterwards.
+ * Up to {@link #HELD_KARP_LIMIT} waypoints the order is found by the Held-Karp dynamic programming over the subsets of the waypoints,
+ * above it the order is built by the nearest neighbor and improved by 2-opt and by moving single waypoints.
+ * The map is frozen while the route is planned: the Kraken is not killed on the way.
+ */
+class WaypointPlanner {
+    /**
+     * The Held-Karp table has 2^n * n entries, above 16 waypoints it takes too much memory and time.
+     */
+    public static final int HELD_KARP_LIMIT = 16;
+    private static final int UNREACHABLE = Integer.MAX_VALUE / 4;
+
+    private final int heldKarpLimit;
+
+    /**
+     * Constructor for the planner that uses the exact search up to {@link #HELD_KARP_LIMIT} waypoints.
+     */
+    public WaypointPlanner() {
+        this(HELD_KARP_LIMIT);
+    }
+
+    /**
+     * Constructor for the WaypointPlanner class.
+     *
+     * @param heldKarpLimit - represents the largest number of waypoints for the exact search, at most {@link #HELD_KARP_LIMIT}
+     */
+    public WaypointPlanner(int heldKarpLimit) {
+        if (heldKarpLimit > HELD_KARP_LIMIT) {
+            throw new IllegalArgumentException("The exact search is limited to " + HELD_KARP_LIMIT + " waypoints");
+        }
+        this.heldKarpLimit = heldKarpLimit;
+    }
+
+    /**
+     * Plans the route from the start through all waypoints.
+     *
+     * @param map       - represents the map
+     * @param start     - represents the start position
+     * @param waypoints - represents the positions to visit in any order
+     * @param end       - represents the position where the route ends, null if it may end at any waypoint
+     * @return - the cheapest route found, or null if some waypoint can not be reached
+     */
+    public WaypointRoute plan(Map map, Position start, ArrayList<Position> waypoints, Position end) {
+        SearchEvent event = new SearchEvent();
+        event.begin();
+        long startTime = System.nanoTime();
+        WaypointRoute route = planRoute(map, start, waypoints, end);
+        SearchEvent.record(event, "Waypoints", route == null ? -1 : route.getPath().size() - 1, System.nanoTime() - startTime, 0, false);
+        return route;
+    }
+
+    private WaypointRoute planRoute(Map map, Position start, ArrayList<Position> waypoints, Position end) {
+        int n = waypoints.size();
+        // The sources of the searches: the waypoints, then the start, the end is only a target
+        ArrayList<Position> points = new ArrayList<>(waypoints);
+        points.add(start);
+        if (end != null) {
+            points.add(end);
+        }
+        // Only the costs are kept, the paths of the legs that are used are found again once the order is known
+        int[][] costs = new int[n + 1][points.size()];
+        for (int i = 0; i <= n; i++) {
+            searchFrom(map, points, i, costs[i]);
+        }
+        int[] order;
+        boolean optimal = n <= heldKarpLimit;
+        if (optimal) {
+            order = heldKarp(costs, n, end != null);
+        } else {
+            order = twoOpt(costs, nearestNeighbor(costs, n), end != null);
+        }
+        if (order == null) {
+            return null;
+        }
+        int cost = routeCost(costs, order, n, end != null);
+        if (cost >= UNREACHABLE) {
+            return null;
+        }
+        ArrayList<Position> path = new ArrayList<>();
+        path.add(start);
+        Position from = start;
+        ArrayList<Position> visited = new ArrayList<>();
+        for (int waypoint : order) {
+            appendPath(map, from, waypoints.get(waypoint), path);
+            visited.add(waypoints.get(waypoint));
+            from = waypoints.get(waypoint);
+        }
+        if (end != null) {
+            appendPath(map, from, end, path);
+        }
+        return new WaypointRoute(visited, path, cost, optimal);
+    }
+
+    /**
+     * Finds the costs from one point to all other points by Dijkstra's algorithm on the bucket queue,
+     * on a map without the terrain it is the breadth-first search. The points can be entered even if they are blocked, like the goal of A*.
+     *
+     * @param map    - represents the map
+     * @param points - represents all points
+     * @param source - represents the index of the point the search starts from
+     * @param costs  - represents the costs to every point, filled by the search
+     */
+    private static void searchFrom(Map map, ArrayList<Position> points, int source, int[] costs) {
+        int width = map.width;
+        boolean[] targets = new boolean[width * map.height];
+        for (Position point : points) {
+            targets[map.index(point)] = true;
+        }
+        int[] distances = new int[width * map.height];
+        Arrays.fill(distances, Integer.MAX_VALUE);
+        boolean[] closed = new boolean[width * map.height];
+        int start = map.index(points.get(source));
+        distances[start] = 0;
+        BucketQueue open = new BucketQueue();
+        open.add(0, 0, start);
+        int cell;
+        while ((cell = open.poll()) >= 0) {
+            if (closed[cell]) {
+                continue;
+            }
+            closed[cell] = true;
+            if (cell != start && !map.isPassable(cell % width, cell / width)) {
+                // A blocked point is entered, but not left
+                continue;
+            }
+            for (int i = -1; i <= 1; i++) {
+                for (int j = -1; j <= 1; j++) {
+                    int x = cell % width + i;
+                    int y = cell / width + j;
+                    if (i == 0 && j == 0 || !map.isPositionValid(x, y)) continue;
+                    int next = y * width + x;
+                    if (closed[next] || !map.isPassable(x, y) && !targets[next]) {
+                        continue;
+                    }
+                    int cost = distances[cell] + map.getMoveCost(x, y);
+                    if (cost < distances[next]) {
+                        distances[next] = cost;
+                        open.add(cost, cost, next);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < points.size(); i++) {
+            int distance = distances[map.index(points.get(i))];
+            costs[i] = distance == Integer.MAX_VALUE ? UNREACHABLE : distance;
+        }
+    }
+
+    /**
+     * Finds the cheapest order by the Held-Karp dynamic programming.
+     * The entry for a subset and a waypoint is the cost of the cheapest path from the start through the subset that ends at the waypoint.
+     *
+     * @param costs  - represents the costs between the points, the start is the point n and the end is the point n + 1
+     * @param n      - represents the number of waypoints
+     * @param hasEnd - represents whether the route ends at the end point
+     * @return - the order of the waypoints, or null if some waypoint or the end can not be reached
+     */
+    private static int[] heldKarp(int[][] costs, int n, boolean hasEnd) {
+        if (n == 0) {
+            return new int[0];
+        }
+        int subsets = 1 << n;
+        int[] table = new int[subsets * n];
+        byte[] previous = new byte[subsets * n];
+        Arrays.fill(table, UNREACHABLE);
+        for (int last = 0; last < n; last++) {
+            table[(1 << last) * n + last] = costs[n][last];
+            previous[(1 << last) * n + last] = -1;
+        }
+        for (int subset = 1; subset < subsets; subset++) {
+            for (int last = 0; last < n; last++) {
+                int cost = table[subset * n + last];
+                if ((subset & 1 << last) == 0 || cost >= UNREACHABLE) {
                     continue;
-                if (best == null) {
-                    best = neighbor;
-                } else {
-                    if (Math.abs(neighbor.getX() - goal.getX()) + Math.abs(neighbor.getY() - goal.getY()) < Math.abs(best.getX() - goal.getX()) + Math.abs(best.getY() - goal.getY())) {
-                        best = neighbor;
-                    } else if (Math.abs(neighbor.getX() - goal.getX()) + Math.abs(neighbor.getY() - goal.getY()) == Math.abs(best.getX() - goal.getX()) + Math.abs(best.getY() - goal.getY())) {
-                        neighbor.setParent(current);
-                        forks.add(neighbor); // The algorithm will return to the fork and try another path
+                }
+                for (int next = 0; next < n; next++) {
+                    if ((subset & 1 << next) != 0) {
+                        continue;
+                    }
+                    int entry = (subset | 1 << next) * n + next;
+                    int nextCost = cost + costs[last][next];
+                    if (nextCost < table[entry]) {
+                        table[entry] = nextCost;
+                        previous[entry] = (byte) last;
+                    }
+                }
+            }
+        }
+        int full = subsets - 1;
+        int best = 0;
+        int bestCost = Integer.MAX_VALUE;
+        for (int last = 0; last < n; last++) {
+            int cost = table[full * n + last] + (hasEnd ? costs[last][n + 1] : 0);
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = last;
+            }
+        }
+        if (bestCost >= UNREACHABLE) {
+            // No entry of the full subset was reached, so there is no order to reconstruct
+            return null;
+        }
+        int[] order = new int[n];
+        int subset = full;
+        for (int i = n - 1; i >= 0; i--) {
+            order[i] = best;
+            int before = previous[subset * n + best];
+            subset &= ~(1 << best);
+            best = before;
+        }
+        return order;
+    }
+
+    /**
+     * Builds the order by going to the cheapest waypoint that was not visited yet.
+     */
+    private static int[] nearestNeighbor(int[][] costs, int n) {
+        int[] order = new int[n];
+        boolean[] visited = new boolean[n];
+        int current = n;
+        for (int i = 0; i < n; i++) {
+            int best = -1;
+            for (int next = 0; next < n; next++) {
+                if (!visited[next] && (best == -1 || costs[current][next] < costs[current][best])) {
+                    best = next;
+                }
+            }
+            order[i] = best;
+            visited[best] = true;
+            current = best;
+        }
+        return order;
+    }
+
+    /**
+     * Improves the order by reversing its parts and by moving single waypoints to other places while the route gets cheaper.
+     * The costs are not symmetric on the terrain, so every changed order is priced in full.
+     */
+    private static int[] twoOpt(int[][] costs, int[] order, boolean hasEnd) {
+        int n = order.length;
+        int bestCost = routeCost(costs, order, n, hasEnd);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            for (int i = 0; i < n - 1; i++) {
+                for (int j = i + 1; j < n; j++) {
+                    reverse(order, i, j);
+                    int cost = routeCost(costs, order, n, hasEnd);
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        improved = true;
+                    } else {
+                        reverse(order, i, j);
+                    }
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    if (i == j) continue;
+                    move(order, i, j);
+                    int cost = routeCost(costs, order, n, hasEnd);
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        improved = true;
+                    } else {
+                        move(order, j, i);
+                    }
+                }
+            }
+        }
+        return order;
+    }
+
+    private static void move(int[] order, int from, int to) {
+        int waypoint = order[from];
+        if (from < to) {
+            System.arraycopy(order, from + 1, order, from, to - from);
+        } else {
+            System.arraycopy(order, to, order, to + 1, from - to);
+        }
+        order[to] = waypoint;
+    }
+
+    private static void reverse(int[] order, int from, int to) {
+        for (; from < to; from++, to--) {
+            int temp = order[from];
+            order[from] = order[to];
+            order[to] = temp;
+        }
+    }
+
+    /**
+     * @return - the cost of the route from the start through the waypoints in the given order, at least UNREACHABLE if some leg has no path
+     */
+    private static int routeCost(int[][] costs, int[] order, int n, boolean hasEnd) {
+        int cost = 0;
+        int current = n;
+        for (int waypoint : order) {
+            cost = Math.min(cost + costs[current][waypoint], UNREACHABLE);
+            current = waypoint;
+        }
+        return hasEnd ? Math.min(cost + costs[current][n + 1], UNREACHABLE) : cost;
+    }
+
+    /**
+     * Finds the path of one leg of the route by A* with the same moves as {@link #searchFrom}, so its cost is the cost of the leg,
+     * and appends it without the first cell, which is already in the path. The state of the search is the one of the map,
+     * so only the cells the search reaches are kept on the maps that keep the state sparse.
+     *
+     * @param map    - represents the map
+     * @param from   - represents the first point of the leg
+     * @param target - represents the last point of the leg, it is entered even if it is blocked
+     * @param path   - represents the path the leg is appended to
+     */
+    private static void appendPath(Map map, Position from, Position target, ArrayList<Position> path) {
+        int width = map.width;
+        Heuristic heuristic = new ChebyshevHeuristic();
+        SearchState state = map.newSearchState();
+        int start = map.index(from);
+        int goal = map.index(target);
+        state.reach(start, 0, -1);
+        BucketQueue open = new BucketQueue();
+        open.add(heuristic.estimate(from.getX(), from.getY(), target.getX(), target.getY()), 0, start);
+        int cell;
+        while ((cell = open.poll()) >= 0 && cell != goal) {
+            if (state.isClosed(cell)) {
+                continue;
+            }
+            state.close(cell);
+            if (cell != start && !map.isPassable(cell % width, cell / width)) {
+                continue;
+            }
+            for (int i = -1; i <= 1; i++) {
+                for (int j = -1; j <= 1; j++) {
+                    int x = cell % width + i;
+                    int y = cell / width + j;
+                    if (i == 0 && j == 0 || !map.isPositionValid(x, y)) continue;
+                    int next = y * width + x;
+                    if (state.isClosed(next) || !map.isPassable(x, y) && next != goal) {
+                        continue;
+                    }
+                    int cost = state.getCost(cell) + map.getMoveCost(x, y);
+                    if (cost < state.getCost(next)) {
+                        state.reach(next, cost, cell);
+                        open.add(cost + heuristic.estimate(x, y, target.getX(), target.getY()), cost, next);
+                    }
+                }
+            }
+        }
+        ArrayList<Position> leg = map.reconstructPath(state, goal);
+        Collections.reverse(leg);
+        path.addAll(leg);
+    }
+}
+
+/**
+ * One result read from the archive.
+ */
+class ArchivedResult {
+    private final long scenario;
+    private final String engine;
+    private final boolean win;
+    private final long elapsedMicros;
+    private final ArrayList<Position> path;
+
+    /**
+     * Constructor for the ArchivedResult class.
+     *
+     * @param scenario      - represents the code of the scenario
+     * @param engine        - represents the name of the engine
+     * @param win           - represents whether the chest was reached
+     * @param elapsedMicros - represents the time of the search in microseconds
+     * @param path          - represents the route including both ends, null if there is no route
+     */
+    public ArchivedResult(long scenario, String engine, boolean win, long elapsedMicros, ArrayList<Position> path) {
+        this.scenario = scenario;
+        this.engine = engine;
+        this.win = win;
+        this.elapsedMicros = elapsedMicros;
+        this.path = path;
+    }
+
+    public long getScenario() {
+        return scenario;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public boolean isWin() {
+        return win;
+    }
+
+    public long getElapsedMicros() {
+        return elapsedMicros;
+    }
+
+    public ArrayList<Position> getPath() {
+        return path;
+    }
+
+    /**
+     * @return - the number of moves of the route, -1 if there is no route
+     */
+    public int getPathLength() {
+        return path == null ? -1 : path.size() - 1;
+    }
+}
+
+/**
+ * The append-only binary archive of the search results. The file starts with the magic number and the version, the records follow.
+ * A record starts with a byte of flags: 0x80 - the scenario is the same as in the previous record, 0x40 - the route does not start
+ * at Jack of the scenario, the bits 0x30 are the id of the engine, 3 if the id follows in the next byte, and the lower 4 bits are
+ * the number of moves plus one, 0 if the chest was not reached and 15 if the number follows as a varint.
+ * The flag 0x40 with 0 moves means that the route is the same as in the previous record, the engines often agree on a scenario.
+ * The extended id 255 defines an engine instead: the id and the name of the engine follow.
+ * Then come the difference of the code of the scenario to the previous one as a zigzag varint, unless it is the same,
+ * and the time in microseconds as a varint. A won record ends with the rest of the number of moves if it did not fit,
+ * the start as varints if it is not Jack, and the moves, 3 bits each.
+ * The scenarios of a sweep are archived in the order of their codes, so the differences take one or two bytes.
+ * Every time the archive is opened the engines are defined again starting from the id 0, the definition of the id 0 restarts
+ * the differences and forgets the previous route.
+ * The records are collected in a direct buffer and written to the file channel when the buffer is full.
+ * Version 1 kept the code of the scenario in 5 bytes and the engine, the outcome, the number of moves and the start in separate fields,
+ * it is still read, but not appended to.
+ */
+class ResultArchive implements AutoCloseable {
+    static final int MAGIC = 0x50465241;
+    static final int VERSION = 2;
+    static final int SAME_SCENARIO = 0x80;
+    static final int OTHER_START = 0x40;
+    static final int ENGINE_SHIFT = 4;
+    static final int EXTENDED_ENGINE = 3;
+    static final int DEFINE_ENGINE = 0xFF;
+    static final int MOVES_MASK = 0x0F;
+    static final long MAX_SCENARIO = 1L << 40;
+    /**
+     * The moves in the order of their codes.
+     */
+    static final int[][] MOVES = new int[][]{{-1, -1}, {0, -1}, {1, -1}, {-1, 0}, {1, 0}, {-1, 1}, {0, 1}, {1, 1}};
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final HashMap<String, Integer> engines = new HashMap<>();
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long previousScenario = -1;
+    private ArrayList<Position> previousPath;
+    private long records;
+
+    /**
+     * Opens the archive for appending, a new file is created with the header.
+     * An existing archive is read to the end first: if the writer crashed in the middle of a record, the file is cut
+     * after the last complete record, so the new records do not follow the partial one.
+     *
+     * @param fileName - represents the name of the file
+     */
+    public ResultArchive(String fileName) {
+        try {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            if (channel.size() == 0) {
+                buffer.putInt(MAGIC).putInt(VERSION);
+            } else {
+                long completeLength;
+                try (ResultArchiveReader reader = new ResultArchiveReader(fileName)) {
+                    // The records are appended only to an archive of the same version
+                    if (reader.getVersion() != VERSION) {
+                        throw new RuntimeException("Not a result archive of version " + VERSION + ": " + fileName);
+                    }
+                    while (reader.next() != null) {
+                        // Only the end of the last complete record is needed
                     }
+                    completeLength = reader.getCompleteLength();
+                } catch (RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+                if (completeLength < channel.size()) {
+                    channel.truncate(completeLength);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Packs the agents of a 9 x 9 map into the code of the scenario, every agent takes a digit from 0 to 80.
+     *
+     * @param agents - represents the agents as returned by {@link Test#generateMap(Map)}
+     * @return - the code of the scenario
+     */
+    public static long scenarioCode(ArrayList<Position> agents) {
+        long code = 0;
+        for (int i = agents.size() - 1; i >= 0; i--) {
+            code = code * 81 + agents.get(i).getY() * 9 + agents.get(i).getX();
+        }
+        return code;
+    }
+
+    /**
+     * @param code - represents the code of the scenario
+     * @return - the position of Jack, the lowest digit of the code
+     */
+    static Position jackOf(long code) {
+        int cell = (int) (code % 81);
+        return new Position(cell % 9, cell / 9);
+    }
+
+    /**
+     * Unpacks the agents of a 9 x 9 map from the code of the scenario.
+     *
+     * @param code - represents the code of the scenario
+     * @return - the agents in the order of {@link Test#generateMap(Map)}
+     */
+    public static ArrayList<Position> decodeScenario(long code) {
+        ArrayList<Position> agents = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            int cell = (int) (code % 81);
+            agents.add(new Position(cell % 9, cell / 9));
+            code /= 81;
+        }
+        return agents;
+    }
+
+    /**
+     * Appends the result of the search.
+     *
+     * @param scenario - represents the code of the scenario, from 0 to 2^40 - 1
+     * @param result   - represents the result of the search
+     */
+    public void append(long scenario, SearchResult result) {
+        if (scenario < 0 || scenario >= MAX_SCENARIO) {
+            throw new IllegalArgumentException("The scenario code must be from 0 to 2^40 - 1: " + scenario);
+        }
+        Integer engine = engines.get(result.getEngine());
+        if (engine == null) {
+            engine = defineEngine(result.getEngine());
+        }
+        ArrayList<Position> path = result.getPath();
+        int moves = path == null ? 0 : path.size() - 1;
+        // The flags, the engine, five varints and the moves
+        ensureRemaining(2 + 5 * 10 + (3 * moves + 7) / 8);
+        boolean samePath = path != null && path.equals(previousPath);
+        boolean otherStart = path != null && !samePath && !path.get(0).equals(jackOf(scenario));
+        int flags = Math.min(engine, EXTENDED_ENGINE) << ENGINE_SHIFT;
+        if (scenario == previousScenario) {
+            flags |= SAME_SCENARIO;
+        }
+        if (samePath) {
+            flags |= OTHER_START;
+        } else if (path != null) {
+            flags |= Math.min(moves + 1, MOVES_MASK);
+            if (otherStart) {
+                flags |= OTHER_START;
+            }
+        }
+        buffer.put((byte) flags);
+        if (engine >= EXTENDED_ENGINE) {
+            buffer.put((byte) (int) engine);
+        }
+        if (scenario != previousScenario) {
+            long difference = scenario - previousScenario;
+            putVarint(difference << 1 ^ difference >> 63);
+            previousScenario = scenario;
+        }
+        putVarint((result.getElapsedTime() + 500) / 1000);
+        previousPath = path;
+        if (path != null && !samePath) {
+            if (moves + 1 >= MOVES_MASK) {
+                putVarint(moves + 1 - MOVES_MASK);
+            }
+            if (otherStart) {
+                putVarint(path.get(0).getX());
+                putVarint(path.get(0).getY());
+            }
+            int bits = 0;
+            int count = 0;
+            for (int i = 1; i <= moves; i++) {
+                bits |= moveCode(path.get(i - 1), path.get(i)) << count;
+                count += 3;
+                if (count >= 8) {
+                    buffer.put((byte) bits);
+                    bits >>>= 8;
+                    count -= 8;
+                }
+            }
+            if (count > 0) {
+                buffer.put((byte) bits);
+            }
+        }
+        records++;
+    }
+
+    private int defineEngine(String name) {
+        if (engines.size() == DEFINE_ENGINE) {
+            throw new RuntimeException("Too many engines in the archive");
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ensureRemaining(4 + bytes.length);
+        int id = engines.size();
+        buffer.put((byte) (EXTENDED_ENGINE << ENGINE_SHIFT)).put((byte) DEFINE_ENGINE).put((byte) id).put((byte) bytes.length).put(bytes);
+        engines.put(name, id);
+        if (id == 0) {
+            // The reader restarts the differences of the scenarios and forgets the route here
+            previousScenario = -1;
+            previousPath = null;
+        }
+        return id;
+    }
+
+    private static int moveCode(Position from, Position to) {
+        int dx = to.getX() - from.getX();
+        int dy = to.getY() - from.getY();
+        if (Math.abs(dx) > 1 || Math.abs(dy) > 1 || dx == 0 && dy == 0) {
+            throw new IllegalArgumentException("The path has a jump from " + from + " to " + to);
+        }
+        int code = (dy + 1) * 3 + dx + 1;
+        // The code 4 is the move in place, it is skipped
+        return code > 4 ? code - 1 : code;
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Makes room for the record, the buffer is written to the file if the record does not fit.
+     */
+    private void ensureRemaining(int size) {
+        if (buffer.remaining() < size) {
+            flush();
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(size) << 1);
+            }
+        }
+    }
+
+    /**
+     * Writes the collected records to the file.
+     */
+    public void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return - the number of records appended since the archive was opened
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    @Override
+    public void close() {
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
+
+/**
+ * Reads the results from the archive written by {@link ResultArchive}, one by one.
+ * If the writer crashed in the middle of a record, the records before it are read and the archive ends there.
+ */
+class ResultArchiveReader implements AutoCloseable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int VERSION_1_WIN = 0x40;
+    private static final int VERSION_1_DEFINE_ENGINE = 0x3F;
+
+    private final FileChannel channel;
+    private final HashMap<Integer, String> engines = new HashMap<>();
+    private final int version;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private boolean endOfFile;
+    private boolean truncated;
+    /**
+     * The number of bytes read from the file into the buffer and the length of the file up to the end of the last complete record.
+     */
+    private long fileOffset;
+    private long completeLength;
+    private long previousScenario = -1;
+    private ArrayList<Position> previousPath;
+
+    /**
+     * Opens the archive for reading.
+     *
+     * @param fileName - represents the name of the file
+     */
+    public ResultArchiveReader(String fileName) {
+        try {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+            buffer.flip();
+            if (!fill(8) || buffer.getInt() != ResultArchive.MAGIC) {
+                throw new RuntimeException("Not a result archive: " + fileName);
+            }
+            version = buffer.getInt();
+            if (version != 1 && version != ResultArchive.VERSION) {
+                throw new RuntimeException("Unknown version " + version + " of the result archive: " + fileName);
+            }
+            completeLength = consumed();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return - the next result, null at the end of the archive or at a record cut short by the end of the file
+     */
+    public ArchivedResult next() {
+        try {
+            ArchivedResult result = version == 1 ? nextVersion1() : nextRecord();
+            if (result != null) {
+                completeLength = consumed();
+            }
+            return result;
+        } catch (TruncatedException e) {
+            truncated = true;
+            return null;
+        }
+    }
+
+    /**
+     * @return - whether the archive ended in the middle of a record, valid after {@link #next()} returned null
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return - the length of the file up to the end of the last complete record or engine definition read so far,
+     * the records can be appended there after the archive was read to the end
+     */
+    public long getCompleteLength() {
+        return completeLength;
+    }
+
+    /**
+     * @return - the number of bytes of the file before the next unread byte
+     */
+    private long consumed() {
+        return fileOffset - buffer.remaining();
+    }
+
+    private ArchivedResult nextRecord() {
+        while (!truncated && fill(1)) {
+            int flags = buffer.get() & 0xFF;
+            int id = flags >>> ResultArchive.ENGINE_SHIFT & ResultArchive.EXTENDED_ENGINE;
+            if (id == ResultArchive.EXTENDED_ENGINE) {
+                require(1);
+                id = buffer.get() & 0xFF;
+                if (id == ResultArchive.DEFINE_ENGINE) {
+                    defineEngine();
+                    continue;
+                }
+            }
+            String engine = engines.get(id);
+            if (engine == null) {
+                throw new RuntimeException("The archive uses an undefined engine " + id);
+            }
+            if ((flags & ResultArchive.SAME_SCENARIO) == 0) {
+                long difference = getVarint();
+                previousScenario += difference >>> 1 ^ -(difference & 1);
+            }
+            long elapsedMicros = getVarint();
+            ArrayList<Position> path = null;
+            int moves = (flags & ResultArchive.MOVES_MASK) - 1;
+            if (moves < 0 && (flags & ResultArchive.OTHER_START) != 0) {
+                path = new ArrayList<>(previousPath);
+            } else if (moves >= 0) {
+                if (moves + 1 == ResultArchive.MOVES_MASK) {
+                    moves += (int) getVarint();
+                }
+                Position start = (flags & ResultArchive.OTHER_START) != 0 ? new Position((int) getVarint(), (int) getVarint())
+                        : ResultArchive.jackOf(previousScenario);
+                path = getMoves(start, moves);
+            }
+            previousPath = path;
+            return new ArchivedResult(previousScenario, engine, path != null, elapsedMicros, path);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the records of the version 1.
+     */
+    private ArchivedResult nextVersion1() {
+        while (!truncated && fill(1)) {
+            int flags = buffer.get() & 0xFF;
+            if (flags == VERSION_1_DEFINE_ENGINE) {
+                defineEngine();
+                continue;
+            }
+            String engine = engines.get(flags & VERSION_1_DEFINE_ENGINE);
+            if (engine == null) {
+                throw new RuntimeException("The archive uses an undefined engine " + (flags & VERSION_1_DEFINE_ENGINE));
+            }
+            if ((flags & ResultArchive.SAME_SCENARIO) == 0) {
+                require(5);
+                previousScenario = (buffer.get() & 0xFFL) << 32 | buffer.getInt() & 0xFFFFFFFFL;
+            }
+            long elapsedMicros = getVarint();
+            ArrayList<Position> path = null;
+            if ((flags & VERSION_1_WIN) != 0) {
+                int moves = (int) getVarint();
+                path = getMoves(new Position((int) getVarint(), (int) getVarint()), moves);
+            }
+            return new ArchivedResult(previousScenario, engine, path != null, elapsedMicros, path);
+        }
+        return null;
+    }
+
+    private void defineEngine() {
+        require(2);
+        int id = buffer.get() & 0xFF;
+        int length = buffer.get() & 0xFF;
+        require(length);
+        byte[] name = new byte[length];
+        buffer.get(name);
+        engines.put(id, new String(name, StandardCharsets.UTF_8));
+        completeLength = consumed();
+        if (id == 0 && version != 1) {
+            // The archive was opened again, the differences restart
+            previousScenario = -1;
+            previousPath = null;
+        }
+    }
+
+    /**
+     * Reads the moves packed 3 bits each.
+     *
+     * @param start - represents the first position of the route
+     * @param moves - represents the number of moves
+     * @return - the route including both ends
+     */
+    private ArrayList<Position> getMoves(Position start, int moves) {
+        Position current = start;
+        ArrayList<Position> path = new ArrayList<>(moves + 1);
+        path.add(current);
+        require((3 * moves + 7) / 8);
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < moves; i++) {
+            if (count < 3) {
+                bits |= (buffer.get() & 0xFF) << count;
+                count += 8;
+            }
+            int[] move = ResultArchive.MOVES[bits & 7];
+            bits >>>= 3;
+            count -= 3;
+            current = new Position(current.getX() + move[0], current.getY() + move[1]);
+            path.add(current);
+        }
+        return path;
+    }
+
+    private long getVarint() {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            require(1);
+            int part = buffer.get();
+            value |= (long) (part & 0x7F) << shift;
+            if ((part & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private void require(int size) {
+        if (!fill(size)) {
+            throw new TruncatedException();
+        }
+    }
+
+    /**
+     * Thrown when the file ends in the middle of a record, {@link #next()} ends the archive there.
+     */
+    private static class TruncatedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TruncatedException() {
+            super("The result archive is truncated", null, false, false);
+        }
+    }
+
+    /**
+     * Reads more of the file until the buffer has the given number of bytes.
+     *
+     * @return - false if the file ends before
+     */
+    private boolean fill(int size) {
+        if (buffer.remaining() >= size) {
+            return true;
+        }
+        if (buffer.capacity() < size) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Integer.highestOneBit(size) << 1);
+            larger.put(buffer);
+            larger.flip();
+            buffer = larger;
+        }
+        buffer.compact();
+        try {
+            while (buffer.position() < size && !endOfFile) {
+                int read = channel.read(buffer);
+                endOfFile = read < 0;
+                fileOffset += Math.max(read, 0);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        buffer.flip();
+        return buffer.remaining() >= size;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
+
+/**
+ * Batch solver that finds the routes of up to 64 scenarios on 9x9 maps at once. The state of the scenarios is bit-sliced:
+ * for every cell there is one long, and the bit i of the long belongs to the scenario i.
+ * So one step of the breadth-first search advances the wavefronts of all scenarios with a few bitwise operations per cell.
+ * The routes are the same as A* finds: the shortest route to the chest, otherwise the shortest route to the tortuga
+ * followed by the shortest route to the chest in which the Kraken dies as soon as Jack stands next to it.
+ */
+class BatchSolver {
+    /**
+     * The number of scenarios solved at once.
+     */
+    public static final int LANES = 64;
+    private static final int SIZE = 9;
+    private static final int CELLS = SIZE * SIZE;
+    /**
+     * The Moore neighbors of every cell.
+     */
+    private static final int[][] NEIGHBORS = new int[CELLS][];
+
+    static {
+        Map map = new Map();
+        for (int cell = 0; cell < CELLS; cell++) {
+            ArrayList<Position> neighbors = map.getMooreNeighbors(new Position(cell % SIZE, cell / SIZE));
+            NEIGHBORS[cell] = new int[neighbors.size()];
+            for (int i = 0; i < neighbors.size(); i++) {
+                NEIGHBORS[cell][i] = index(neighbors.get(i));
+            }
+        }
+    }
+
+    /**
+     * Finds the routes of the scenarios.
+     *
+     * @param scenarios - represents at most 64 lists of agents, as returned by {@link Test#generateMap(Map)}
+     * @return - the number of steps of the route of every scenario, -1 if the scenario is lost
+     */
+    public static int[] solve(List<ArrayList<Position>> scenarios) {
+        if (scenarios.size() > LANES) {
+            throw new IllegalArgumentException("At most " + LANES + " scenarios can be solved at once");
+        }
+        // The lanes are searched together, so every event lasts the whole batch
+        SearchEvent[] events = new SearchEvent[scenarios.size()];
+        for (int lane = 0; lane < events.length; lane++) {
+            events[lane] = new SearchEvent();
+            events[lane].begin();
+        }
+        long startTime = System.nanoTime();
+        int[] result = solveLanes(scenarios);
+        // The metrics take every scenario with its share of the time of the batch
+        long elapsedTime = (System.nanoTime() - startTime) / Math.max(scenarios.size(), 1);
+        for (int lane = 0; lane < events.length; lane++) {
+            SearchEvent.record(events[lane], "Batch", result[lane], elapsedTime, 0, false);
+        }
+        return result;
+    }
+
+    private static int[] solveLanes(List<ArrayList<Position>> scenarios) {
+        long[] jack = new long[CELLS];
+        long[] chest = new long[CELLS];
+        long[] tortuga = new long[CELLS];
+        long[] blocked = new long[CELLS];
+        long[] blockedKilled = new long[CELLS];
+        long[] trigger = new long[CELLS];
+        long[] triggerAtJack = new long[CELLS];
+        for (int lane = 0; lane < scenarios.size(); lane++) {
+            long bit = 1L << lane;
+            ArrayList<Position> agents = scenarios.get(lane);
+            Position davy = agents.get(1);
+            Position kraken = agents.get(2);
+            Position rock = agents.get(3);
+            jack[index(agents.get(0))] |= bit;
+            chest[index(agents.get(4))] |= bit;
+            tortuga[index(agents.get(5))] |= bit;
+            blocked[index(davy)] |= bit;
+            for (int neighbor : NEIGHBORS[index(davy)]) {
+                blocked[neighbor] |= bit;
+            }
+            blocked[index(kraken)] |= bit;
+            for (int neighbor : NEIGHBORS[index(kraken)]) {
+                if (neighbor % SIZE == kraken.getX() || neighbor / SIZE == kraken.getY()) {
+                    blocked[neighbor] |= bit;
                 }
             }
-            current.setParent(best);
-            current = best;
-            path.add(current);
-            // If the size of the path is large enough, then there is no solution(at least without visiting tortuga).
-            if (path.size() > 65) {
-                break;
+            blocked[index(rock)] |= bit;
+        }
+        System.arraycopy(blocked, 0, blockedKilled, 0, CELLS);
+        for (int lane = 0; lane < scenarios.size(); lane++) {
+            long bit = 1L << lane;
+            ArrayList<Position> agents = scenarios.get(lane);
+            Position davy = agents.get(1);
+            Position kraken = agents.get(2);
+            Position rock = agents.get(3);
+            if (kraken.equals(rock)) {
+                // The Kraken under the rock can not be killed
+                continue;
+            }
+            // When the Kraken dies its cell and its zone are cleared, except the cells of the zone of Davy Jones and the rock
+            // The rock is not put on the zone of the Kraken, it is only there while the Kraken is alive
+            blockedKilled[index(kraken)] &= ~bit;
+            for (int neighbor : NEIGHBORS[index(kraken)]) {
+                boolean zone = neighbor % SIZE == kraken.getX() || neighbor / SIZE == kraken.getY();
+                boolean davyZone = Math.abs(neighbor % SIZE - davy.getX()) <= 1 && Math.abs(neighbor / SIZE - davy.getY()) <= 1;
+                if (zone && !davyZone) {
+                    blockedKilled[neighbor] &= ~bit;
+                }
+                trigger[neighbor] |= bit;
+                if (agents.get(0).equals(agents.get(5))) {
+                    // Jack starts at the tortuga, so he can kill the Kraken on the way to the chest
+                    triggerAtJack[neighbor] |= bit;
+                }
             }
         }
-        // If we have forks, we will try to find the best path from them and then return to the main path
-        ArrayList<ArrayList<Position>> forkedPaths = new ArrayList<>();
-        if (current != null && !forks.isEmpty() && current.equals(goal)) {
-            bestResult = path.size();
-            for (Position fork : forks) {
-                ArrayList<Position> newPathForFork = new ArrayList<>();
-                for (Position position : path) {
-                    if (position.equals(fork.getParent())) {
-                        newPathForFork.add(position);
-                        break;
-                    }
-                    newPathForFork.add(position);
+        long all = scenarios.size() == LANES ? -1L : (1L << scenarios.size()) - 1;
+        for (int lane = 0; lane < scenarios.size(); lane++) {
+            if ((blocked[index(scenarios.get(lane).get(0))] & 1L << lane) != 0) {
+                // Jack starts inside a dangerous zone
+                all &= ~(1L << lane);
+            }
+        }
+        int[] toChest = wave(jack, chest, all, blocked, blockedKilled, triggerAtJack);
+        long lost = 0;
+        for (int lane = 0; lane < scenarios.size(); lane++) {
+            if (toChest[lane] < 0 && (all & 1L << lane) != 0) {
+                lost |= 1L << lane;
+            }
+        }
+        int[] result = toChest;
+        if (lost != 0) {
+            int[] toTortuga = wave(jack, tortuga, lost, blocked, blockedKilled, triggerAtJack);
+            int[] tortugaToChest = wave(tortuga, chest, lost, blocked, blockedKilled, trigger);
+            for (int lane = 0; lane < scenarios.size(); lane++) {
+                if ((lost & 1L << lane) != 0) {
+                    result[lane] = toTortuga[lane] < 0 || tortugaToChest[lane] < 0 ? -1 : toTortuga[lane] + tortugaToChest[lane];
                 }
-                newPathForFork.add(fork);
+            }
+        }
+        return result;
+    }
 
-                backtrackingSearchForFork(newPathForFork, goal, bestResult, forkedPaths);
+    /**
+     * Breadth-first search of all lanes at once. Every lane has two layers: the Kraken is alive and the Kraken is dead.
+     * Jack moves to the second layer when he stands on a trigger cell of his lane.
+     *
+     * @param start         - represents the start cell of every lane
+     * @param goal          - represents the goal cell of every lane
+     * @param lanes         - represents the lanes to search
+     * @param blocked       - represents the cells Jack can not step on while the Kraken is alive
+     * @param blockedKilled - represents the cells Jack can not step on after the Kraken is dead
+     * @param trigger       - represents the cells where Jack kills the Kraken
+     * @return - the number of steps to the goal of every lane, -1 if the goal is not reachable
+     */
+    private static int[] wave(long[] start, long[] goal, long lanes, long[] blocked, long[] blockedKilled, long[] trigger) {
+        int[] distance = new int[LANES];
+        Arrays.fill(distance, -1);
+        long[] alive = new long[CELLS];
+        long[] dead = new long[CELLS];
+        long[] seenAlive = new long[CELLS];
+        long[] seenDead = new long[CELLS];
+        long[] nextAlive = new long[CELLS];
+        long[] nextDead = new long[CELLS];
+        for (int cell = 0; cell < CELLS; cell++) {
+            alive[cell] = start[cell] & lanes;
+            dead[cell] = alive[cell] & trigger[cell];
+            seenAlive[cell] = alive[cell];
+            seenDead[cell] = dead[cell];
+        }
+        long active = lanes;
+        for (int step = 1; active != 0; step++) {
+            long reached = 0;
+            long moving = 0;
+            for (int cell = 0; cell < CELLS; cell++) {
+                long fromAlive = 0;
+                long fromDead = 0;
+                for (int neighbor : NEIGHBORS[cell]) {
+                    fromAlive |= alive[neighbor];
+                    fromDead |= dead[neighbor];
+                }
+                // The goal is reached when it is a neighbor of the frontier, like in A*
+                reached |= (fromAlive | fromDead) & goal[cell];
+                fromAlive &= ~blocked[cell] & ~seenAlive[cell];
+                fromDead &= ~blockedKilled[cell] & ~seenDead[cell];
+                fromDead |= fromAlive & trigger[cell] & ~seenDead[cell];
+                nextAlive[cell] = fromAlive;
+                nextDead[cell] = fromDead;
+                moving |= fromAlive | fromDead;
+            }
+            reached &= active;
+            for (long bits = reached; bits != 0; bits &= bits - 1) {
+                distance[Long.numberOfTrailingZeros(bits)] = step;
+            }
+            active &= ~reached & moving;
+            for (int cell = 0; cell < CELLS; cell++) {
+                alive[cell] = nextAlive[cell] & active;
+                dead[cell] = nextDead[cell] & active;
+                seenAlive[cell] |= alive[cell];
+                seenDead[cell] |= dead[cell];
             }
         }
-        for (ArrayList<Position> forkedPath : forkedPaths) {
-            if (forkedPath.size() < bestResult) {
-                bestResult = forkedPath.size();
-                path = forkedPath;
+        return distance;
+    }
+
+    private static int index(Position position) {
+        return position.getY() * SIZE + position.getX();
+    }
+}
+
+/**
+ * The class is used to generate map and do tests.
+ */
+class Test {
+
+    /**
+     * Generate a new random map. The map is a 9x9 grid.
+     * 0 - empty space
+     * 1 - Jack - always at 0,0
+     * 2 - Davy Jones - except inside the Tortuga and the chest, positons of the Kraken, the Rock and Jack.
+     * 3 - Kraken - except inside the Tortuga and the chest, positons of the Davy Jones and Jack.
+     * 4 - Rock - except inside the Tortuga and the chest, position of the Davy Jones and Jack.
+     * 5 - Chest - except danger zones and Jack's position.
+     * 6 - Tortuga - except danger zones and the chest.
+     * -1 - Dangerous zone
+     *
+     * @param map The map.
+     * @return agents The list of agents.
+     */
+    public static ArrayList<Position> generateMap(Map map) {
+        return generateMap(map, new Random());
+    }
+
+    /**
+     * Generate a new random map using the given source of randomness, so the same seed gives the same map.
+     *
+     * @param map    The map.
+     * @param random The source of randomness.
+     * @return agents The list of agents.
+     */
+    public static ArrayList<Position> generateMap(Map map, Random random) {
+
+        Position jack = new Position(0, 0);
+        map.addAgent(1, jack);
+        Position davy;
+        Position kraken;
+        Position rock;
+        Position chest;
+        Position tortuga;
+        ArrayList<Position> agents = new ArrayList<>();
+        do {
+            davy = new Position(random.nextInt(9), random.nextInt(9));
+        } while (davy.getX() == 0 && davy.getY() == 0);
+        map.addAgent(2, davy);
+        do {
+            kraken = new Position(random.nextInt(9), random.nextInt(9));
+        } while (map.getMooreNeighbors(kraken).contains(davy) || kraken.getX() == 0 && kraken.getY() == 0 || kraken.getX() == davy.getX() && kraken.getY() == davy.getY());
+        map.addAgent(3, kraken);
+        do {
+            rock = new Position(random.nextInt(9), random.nextInt(9));
+        } while (map.getMooreNeighbors(rock).contains(davy) || rock.getX() == 0 && rock.getY() == 0 || rock.getX() == davy.getX() && rock.getY() == davy.getY());
+        map.addRock(rock);
+        do {
+            chest = new Position(random.nextInt(9), random.nextInt(9));
+        } while (map.getAgent(chest.getX(), chest.getY()) == -1 || chest.getX() == 0 && chest.getY() == 0 || chest.getX() == davy.getX() && chest.getY() == davy.getY() || chest.getX() == kraken.getX() && chest.getY() == kraken.getY() || chest.getX() == rock.getX() && chest.getY() == rock.getY());
+        map.addAgent(5, chest);
+        do {
+            tortuga = new Position(random.nextInt(9), random.nextInt(9));
+        } while (map.getAgent(tortuga.getX(), tortuga.getY()) == -1 || tortuga.getX() == davy.getX() && tortuga.getY() == davy.getY() || tortuga.getX() == kraken.getX() && tortuga.getY() == kraken.getY() || tortuga.getX() == rock.getX() && tortuga.getY() == rock.getY() || tortuga.getX() == chest.getX() && tortuga.getY() == chest.getY());
+        map.addTortuga(tortuga);
+        agents.add(jack);
+        agents.add(davy);
+        agents.add(kraken);
+        agents.add(rock);
+        agents.add(chest);
+        agents.add(tortuga);
+        return agents;
+    }
+
+    /**
+     * Generate a new random map of any size. Jack is at 0,0, Davy Jones and the Kraken are placed randomly,
+     * the chest is placed in the last quarter of the map and the rocks cover the given share of the cells.
+     *
+     * @param map         The map.
+     * @param random      The source of randomness.
+     * @param rockDensity The share of the cells covered by the rocks.
+     * @return agents The list of agents, the rock is one of the rocks or null if there are no rocks.
+     */
+    public static ArrayList<Position> generateLargeMap(Map map, Random random, double rockDensity) {
+        Position jack = new Position(0, 0);
+        Position rock = null;
+        for (int i = 0; i < map.height; i++) {
+            for (int j = 0; j < map.width; j++) {
+                if (i + j > 2 && random.nextDouble() < rockDensity) {
+                    rock = new Position(j, i);
+                    map.addRock(rock);
+                }
             }
         }
-        if (current == null) {
-            //Restart the algorithm with the goal to reach the tortuga and then reach the chest by killing the kraken.
-            path.clear();
-            path.add(start);
-            current = start;
-            while (current != null && !current.equals(tortuga)) {
-                ArrayList<Position> neighbors = getMooreNeighbors(current);
-                Position best = null;
-                for (Position neighbor : neighbors) {
-                    if (path.contains(neighbor) || neighbor.getAgent() == -1 || neighbor.getAgent() == 2 || neighbor.getAgent() == 3 || neighbor.getAgent() == 4)
-                        continue;
-                    if (best == null) {
-                        best = neighbor;
-                    } else {
-                        if (Math.abs(neighbor.getX() - tortuga.getX()) + Math.abs(neighbor.getY() - tortuga.getY()) < Math.abs(best.getX() - tortuga.getX()) + Math.abs(best.getY() - tortuga.getY())) {
-                            best = neighbor;
-                        } else if (Math.abs(neighbor.getX() - tortuga.getX()) + Math.abs(neighbor.getY() - tortuga.getY()) == Math.abs(best.getX() - tortuga.getX()) + Math.abs(best.getY() - tortuga.getY())) {
-                            forks.add(neighbor); // The algorithm will return to the fork and try another path
+        map.addAgent(1, jack);
+        Position davy;
+        Position kraken;
+        Position chest;
+        Position tortuga;
+        do {
+            davy = new Position(random.nextInt(map.width), random.nextInt(map.height));
+        } while (davy.getX() + davy.getY() < 3 || map.getAgent(davy.getX(), davy.getY()) != 0);
+        map.addAgent(2, davy);
+        do {
+            kraken = new Position(random.nextInt(map.width), random.nextInt(map.height));
+        } while (kraken.getX() + kraken.getY() < 3 || map.getAgent(kraken.getX(), kraken.getY()) != 0);
+        map.addAgent(3, kraken);
+        do {
+            chest = new Position(map.width / 2 + random.nextInt(map.width - map.width / 2), map.height / 2 + random.nextInt(map.height - map.height / 2));
+        } while (map.getAgent(chest.getX(), chest.getY()) != 0);
+        map.addAgent(5, chest);
+        do {
+            tortuga = new Position(random.nextInt(map.width), random.nextInt(map.height));
+        } while (map.getAgent(tortuga.getX(), tortuga.getY()) != 0);
+        map.addTortuga(tortuga);
+        ArrayList<Position> agents = new ArrayList<>();
+        agents.add(jack);
+        agents.add(davy);
+        agents.add(kraken);
+        agents.add(rock);
+        agents.add(chest);
+        agents.add(tortuga);
+        return agents;
+    }
+
+    /**
+     * Covers the map with random rectangles of shallows and currents.
+     *
+     * @param map    The map.
+     * @param random The source of randomness.
+     */
+    public static void generateTerrain(Map map, Random random) {
+        int patches = map.width * map.height / 100;
+        for (int k = 0; k < patches; k++) {
+            int cost = random.nextBoolean() ? Map.SHALLOWS : Map.CURRENT;
+            int x = random.nextInt(map.width);
+            int y = random.nextInt(map.height);
+            int patchWidth = 1 + random.nextInt(8);
+            int patchHeight = 1 + random.nextInt(8);
+            for (int i = y; i < Math.min(map.height, y + patchHeight); i++) {
+                for (int j = x; j < Math.min(map.width, x + patchWidth); j++) {
+                    map.setCost(new Position(j, i), cost);
+                }
+            }
+        }
+    }
+
+    /**
+     * This method is used to compare the open lists of A* on large maps with and without the terrain costs.
+     * For each variant it prints the mean time, the mean number of expanded positions and the mean cost of the path.
+     */
+    public static void terrainAnalysis() {
+        int numberOfTests = 10;
+        String[] variants = new String[]{"Unit A*, heap", "Unit A*, buckets", "Weighted A*, heap", "Weighted A*, buckets", "Weighted Dijkstra, heap", "Weighted Dijkstra, buckets"};
+        // The first round warms up the searches
+        for (int round = 0; round < 2; round++) {
+            for (String variant : variants) {
+                Random random = new Random(42);
+                long elapsedTime = 0;
+                long expansions = 0;
+                long pathCost = 0;
+                for (int k = 0; k < numberOfTests; k++) {
+                    Map map = new Map(400, 400);
+                    ArrayList<Position> agents = generateLargeMap(map, random, 0.2);
+                    long seed = random.nextLong();
+                    if (variant.startsWith("Weighted")) {
+                        generateTerrain(map, new Random(seed));
+                    }
+                    Heuristic heuristic = variant.contains("Dijkstra") ? new ZeroHeuristic() : new ChebyshevHeuristic();
+                    OpenList open = variant.endsWith("heap") ? new BinaryHeap() : new BucketQueue();
+                    map.resetExpansions();
+                    long startTime = System.nanoTime();
+                    ArrayList<Position> path = map.aStar(agents.get(0), agents.get(4), heuristic, open, () -> false);
+                    elapsedTime += System.nanoTime() - startTime;
+                    expansions += map.getExpansions();
+                    if (path != null) {
+                        for (Position position : path) {
+                            pathCost += map.getMoveCost(position);
                         }
                     }
                 }
-                current = best;
-                path.add(current);
-                if (path.size() > 65) {
-                    break;
+                if (round == 1) {
+                    System.out.println(variant + ": ");
+                    System.out.println("Mean time: " + elapsedTime / 1000000.0 / numberOfTests + " ms");
+                    System.out.println("Mean expansions: " + (double) expansions / numberOfTests);
+                    System.out.println("Mean path cost: " + (double) pathCost / numberOfTests);
                 }
             }
-            // Now, we will try to kill the kraken and reach the chest.
-            ArrayList<Position> pathToChest = new ArrayList<>();
-            while (current != null && !current.equals(goal)) {
-                ArrayList<Position> neighbors = getMooreNeighbors(current);
-                Position best = null;
-                for (Position neighbor : neighbors) {
-                    if (neighbor.getAgent() == 3) {
-                        // We killed the kraken
-                        neighbor.setAgent(0);
-                        for (Position danger : getMooreNeighbors(neighbor)) {
-                            danger.setAgent(0);
-                        }
+        }
+    }
+
+    /**
+     * This method is used to evaluate the anytime planner on large maps with several time budgets.
+     * For each budget it prints how many paths were found, how many searches finished, the mean bound of the suboptimality
+     * and the mean and the longest time until the result completed.
+     */
+    public static void anytimeAnalysis() {
+        int numberOfTests = 20;
+        long[] budgets = new long[]{1, 5, 20, 100};
+        AnytimePlanner planner = new AnytimePlanner();
+        // The first plans load and compile the classes, they are not measured
+        for (int k = 0; k < 5; k++) {
+            Map map = new Map(300, 300);
+            ArrayList<Position> agents = generateLargeMap(map, new Random(k), 0.3);
+            planner.planAsync(map, agents.get(0), agents.get(4), 100).getResult().join();
+        }
+        for (long budget : budgets) {
+            Random random = new Random(42);
+            int found = 0;
+            int finished = 0;
+            double bounds = 0;
+            long elapsedTime = 0;
+            long maxTime = 0;
+            for (int k = 0; k < numberOfTests; k++) {
+                Map map = new Map(300, 300);
+                ArrayList<Position> agents = generateLargeMap(map, random, 0.3);
+                long startTime = System.nanoTime();
+                AnytimeResult result = planner.planAsync(map, agents.get(0), agents.get(4), budget).getResult().join();
+                elapsedTime += System.nanoTime() - startTime;
+                maxTime = Math.max(maxTime, System.nanoTime() - startTime);
+                if (result.getPath() != null) {
+                    found++;
+                    bounds += result.getBound();
+                }
+                if (result.isFinished()) {
+                    finished++;
+                }
+            }
+            System.out.println("Budget " + budget + " ms: ");
+            System.out.println("Paths found: " + found);
+            System.out.println("Finished: " + finished);
+            System.out.println("Mean bound: " + (found == 0 ? 0.0 : bounds / found));
+            System.out.println("Mean time: " + elapsedTime / 1000000.0 / numberOfTests + " ms");
+            System.out.println("Max time: " + maxTime / 1000000.0 + " ms");
+        }
+    }
+
+    /**
+     * This method is used to compare the batch solver with A* on the same scenarios.
+     * It prints the number of scenarios solved per second by both and the number of scenarios where the results differ.
+     */
+    public static void batchAnalysis() {
+        int numberOfTests = 64 * 1000;
+        Random random = new Random(42);
+        ArrayList<ArrayList<Position>> corpus = new ArrayList<>();
+        for (int k = 0; k < numberOfTests; k++) {
+            corpus.add(generateMap(new Map(), random));
+        }
+        PathFinder aStar = PathFinderRegistry.get("AStar");
+        int[] expected = new int[numberOfTests];
+        int[] actual = new int[numberOfTests];
+        long scalarTime = Long.MAX_VALUE;
+        long batchTime = Long.MAX_VALUE;
+        // The best of several rounds is taken, so both engines are measured after the warm-up
+        for (int round = 0; round < 5; round++) {
+            long startTime = System.nanoTime();
+            for (int k = 0; k < numberOfTests; k++) {
+                Map map = new Map();
+                map.addAgents(corpus.get(k));
+                SearchResult result = map.solve(aStar);
+                expected[k] = result.isWin() ? result.getPath().size() - 1 : -1;
+            }
+            scalarTime = Math.min(scalarTime, System.nanoTime() - startTime);
+            startTime = System.nanoTime();
+            for (int k = 0; k < numberOfTests; k += BatchSolver.LANES) {
+                int[] lengths = BatchSolver.solve(corpus.subList(k, Math.min(k + BatchSolver.LANES, numberOfTests)));
+                System.arraycopy(lengths, 0, actual, k, Math.min(BatchSolver.LANES, numberOfTests - k));
+            }
+            batchTime = Math.min(batchTime, System.nanoTime() - startTime);
+        }
+        int outcomes = 0;
+        int lengths = 0;
+        for (int k = 0; k < numberOfTests; k++) {
+            if ((expected[k] < 0) != (actual[k] < 0)) {
+                outcomes++;
+            } else if (expected[k] != actual[k]) {
+                lengths++;
+            }
+        }
+        System.out.println("AStar: " + Math.round(numberOfTests / (scalarTime / 1000000000.0)) + " scenarios per second");
+        System.out.println("Batch: " + Math.round(numberOfTests / (batchTime / 1000000000.0)) + " scenarios per second");
+        System.out.println("Different outcomes: " + outcomes);
+        System.out.println("Different path lengths: " + lengths);
+    }
+
+    /**
+     * Adds the walls of rocks to the map. Every wall is a horizontal or vertical line with one gap.
+     *
+     * @param map    The map.
+     * @param random The source of randomness.
+     * @param walls  The number of walls.
+     */
+    public static void generateWalls(Map map, Random random, int walls) {
+        for (int k = 0; k < walls; k++) {
+            boolean horizontal = random.nextBoolean();
+            int length = (horizontal ? map.width : map.height) / 2 + random.nextInt((horizontal ? map.width : map.height) / 2);
+            int x = random.nextInt(map.width);
+            int y = random.nextInt(map.height);
+            int gap = random.nextInt(length);
+            for (int i = 0; i < length; i++) {
+                int wallX = horizontal ? (x + i) % map.width : x;
+                int wallY = horizontal ? y : (y + i) % map.height;
+                if (i != gap && wallX + wallY > 2) {
+                    map.addRock(new Position(wallX, wallY));
+                }
+            }
+        }
+    }
+
+    /**
+     * This method is used to compare the landmark heuristic with Chebyshev on large maps with walls.
+     * For each heuristic it prints the time and the memory of the preprocessing, the mean number of expanded positions,
+     * the mean time of A* and the number of paths that are more expensive than the paths of Chebyshev.
+     * Then it counts the legs from the tortuga on small maps where A* with the landmarks finds a longer path than Dijkstra.
+     */
+    public static void landmarkAnalysis() {
+        int numberOfMaps = 3;
+        int queriesPerMap = 50;
+        int[] landmarkCounts = new int[]{0, 4, 8, 16};
+        long[] preprocessing = new long[landmarkCounts.length];
+        long[] memory = new long[landmarkCounts.length];
+        long[] expansions = new long[landmarkCounts.length];
+        long[] elapsedTime = new long[landmarkCounts.length];
+        int[] worse = new int[landmarkCounts.length];
+        Random random = new Random(42);
+        for (int m = 0; m < numberOfMaps; m++) {
+            Map map = new Map(400, 400);
+            generateLargeMap(map, random, 0.15);
+            generateWalls(map, random, 12);
+            // The queries that have a path, the searches without a path expand the same cells with any heuristic
+            ArrayList<Position> queries = new ArrayList<>();
+            while (queries.size() < 2 * queriesPerMap) {
+                Position start = new Position(random.nextInt(map.width), random.nextInt(map.height));
+                Position goal = new Position(random.nextInt(map.width), random.nextInt(map.height));
+                if (map.isPassable(start) && map.isPassable(goal) && map.getReachability().canReach(start, goal, false)) {
+                    queries.add(start);
+                    queries.add(goal);
+                }
+            }
+            int[] costs = new int[queriesPerMap];
+            for (int h = 0; h < landmarkCounts.length; h++) {
+                Heuristic heuristic = new ChebyshevHeuristic();
+                if (landmarkCounts[h] > 0) {
+                    LandmarkHeuristic landmarks = new LandmarkHeuristic(map, landmarkCounts[h], random);
+                    preprocessing[h] += landmarks.getPreprocessingTime();
+                    memory[h] = landmarks.getMemory();
+                    heuristic = landmarks;
+                }
+                for (int q = 0; q < queriesPerMap; q++) {
+                    map.resetExpansions();
+                    long startTime = System.nanoTime();
+                    ArrayList<Position> path = map.aStar(queries.get(2 * q), queries.get(2 * q + 1), heuristic);
+                    elapsedTime[h] += System.nanoTime() - startTime;
+                    expansions[h] += map.getExpansions();
+                    int cost = 0;
+                    for (Position position : path == null ? new ArrayList<Position>() : path) {
+                        cost += map.getMoveCost(position);
                     }
-                    if (pathToChest.contains(neighbor) || neighbor.getAgent() == -1 || neighbor.getAgent() == 2 || neighbor.getAgent() == 4)
-                        continue;
-                    if (best == null) {
-                        best = neighbor;
-                    } else {
-                        if (Math.abs(neighbor.getX() - goal.getX()) + Math.abs(neighbor.getY() - goal.getY()) < Math.abs(best.getX() - goal.getX()) + Math.abs(best.getY() - goal.getY())) {
-                            best = neighbor;
-                        } else if (Math.abs(neighbor.getX() - goal.getX()) + Math.abs(neighbor.getY() - goal.getY()) == Math.abs(best.getX() - goal.getX()) + Math.abs(best.getY() - goal.getY())) {
-                            neighbor.setParent(current);
-                            forks.add(neighbor); // The algorithm will return to the fork and try another path
+                    if (h == 0) {
+                        costs[q] = cost;
+                    } else if (cost != costs[q]) {
+                        worse[h]++;
+                    }
+                }
+            }
+        }
+        int searches = numberOfMaps * queriesPerMap;
+        for (int h = 0; h < landmarkCounts.length; h++) {
+            System.out.println((landmarkCounts[h] == 0 ? "Chebyshev" : "ALT, " + landmarkCounts[h] + " landmarks") + ": ");
+            if (landmarkCounts[h] > 0) {
+                System.out.println("Preprocessing: " + preprocessing[h] / 1000000.0 / numberOfMaps + " ms, " + memory[h] / 1024 / 1024 + " MB");
+            }
+            System.out.println("Mean expansions: " + (double) expansions[h] / searches);
+            System.out.println("Mean time: " + elapsedTime[h] / 1000000.0 / searches + " ms");
+            System.out.println("Different path costs: " + worse[h]);
+        }
+        // The legs from the tortuga kill the Kraken, the costs of the landmarks were computed with it alive
+        int longerLegs = 0;
+        for (int k = 0; k < 1000; k++) {
+            ArrayList<Position> agents = generateMap(new Map(), random);
+            Map map = new Map();
+            map.addAgents(agents);
+            if (map.getAgent(0, 0) == -1) {
+                continue;
+            }
+            LandmarkHeuristic landmarks = new LandmarkHeuristic(map, 4, random);
+            ArrayList<Position> leg = map.aStar(agents.get(5), agents.get(4), landmarks);
+            ArrayList<Position> shortest = map.aStar(agents.get(5), agents.get(4), new ZeroHeuristic());
+            if (shortest != null && (leg == null || leg.size() > shortest.size())) {
+                longerLegs++;
+            }
+        }
+        System.out.println("Legs from the tortuga longer than Dijkstra with ALT: " + longerLegs);
+    }
+
+    /**
+     * This method is used to compare the map kept on the heap with the same map kept in a mapped file.
+     * It prints the time to open the file, the heap used by the open map, the time of A* on both maps and the heap allocated by A*,
+     * then it builds a map of 25 million cells right in a file, searches and solves it, and checks that a map of 2^32 cells is refused.
+     */
+    public static void mappedAnalysis() {
+        try {
+            Random random = new Random(42);
+            Map map = new Map(2000, 2000);
+            ArrayList<Position> agents = generateLargeMap(map, random, 0.2);
+            generateTerrain(map, random);
+            File file = File.createTempFile("map", ".bin");
+            file.deleteOnExit();
+            MappedMap.write(map, file.getPath(), MappedMap.DEFAULT_TILE_SHIFT).force();
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            long usedMemory = runtime.totalMemory() - runtime.freeMemory();
+            long startTime = System.nanoTime();
+            MappedMap mapped = MappedMap.open(file.getPath(), false);
+            long openTime = System.nanoTime() - startTime;
+            System.gc();
+            System.out.println("Opened " + file.length() / 1024 / 1024 + " MB in " + openTime / 1000000.0 + " ms, heap used by the map: "
+                    + Math.max(0, runtime.totalMemory() - runtime.freeMemory() - usedMemory) / 1024 + " KB");
+            for (Map variant : new Map[]{map, mapped}) {
+                long elapsedTime = Long.MAX_VALUE;
+                long allocated = 0;
+                int pathCost = 0;
+                // The first searches warm up A*
+                for (int round = 0; round < 3; round++) {
+                    long allocatedBefore = allocatedBytes();
+                    startTime = System.nanoTime();
+                    ArrayList<Position> path = variant.aStar(agents.get(0), agents.get(4));
+                    elapsedTime = Math.min(elapsedTime, System.nanoTime() - startTime);
+                    allocated = allocatedBytes() - allocatedBefore;
+                    pathCost = 0;
+                    for (Position position : path == null ? new ArrayList<Position>() : path) {
+                        pathCost += variant.getMoveCost(position);
+                    }
+                }
+                System.out.println((variant == map ? "Heap" : "Mapped") + ": path cost " + pathCost + ", A* " + elapsedTime / 1000000.0 + " ms, allocated "
+                        + allocated / 1024 + " KB");
+            }
+
+            File largeFile = File.createTempFile("large", ".bin");
+            largeFile.deleteOnExit();
+            MappedMap large = MappedMap.create(largeFile.getPath(), 5000, 5000, MappedMap.DEFAULT_TILE_SHIFT);
+            ArrayList<Position> largeAgents = generateLargeMap(large, random, 0.2);
+            large.force();
+            startTime = System.nanoTime();
+            large = MappedMap.open(largeFile.getPath(), false);
+            openTime = System.nanoTime() - startTime;
+            long allocatedBefore = allocatedBytes();
+            startTime = System.nanoTime();
+            ArrayList<Position> path = large.aStar(largeAgents.get(0), largeAgents.get(4));
+            System.out.println("Opened " + largeFile.length() / 1024 / 1024 + " MB in " + openTime / 1000000.0 + " ms, "
+                    + (path == null ? "no path" : path.size() + " positions") + ", A* " + (System.nanoTime() - startTime) / 1000000.0 + " ms, allocated "
+                    + (allocatedBytes() - allocatedBefore) / 1024 + " KB");
+            // Solve finds the agents and runs the search without the connected components
+            allocatedBefore = allocatedBytes();
+            SearchResult result = large.solve(PathFinderRegistry.get("AStar"));
+            System.out.println("Solve: " + (result.isWin() ? "Win" : "Lose") + ", " + result.getElapsedTime() / 1000000.0 + " ms, allocated "
+                    + (allocatedBytes() - allocatedBefore) / 1024 + " KB");
+            try {
+                MappedMap.create(largeFile.getPath(), 65536, 65536, MappedMap.DEFAULT_TILE_SHIFT);
+                System.out.println("A map of 2^32 cells was created");
+            } catch (IllegalArgumentException e) {
+                System.out.println("A map of 2^32 cells is refused: " + e.getMessage());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return - the number of bytes allocated on the heap by the current thread so far
+     */
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * This method is used to evaluate the waypoint planner on a large map with the terrain.
+     * For each number of waypoints it prints the time and the cost of the route found by the exact search, where it is used,
+     * and by the nearest neighbor with 2-opt.
+     */
+    public static void waypointAnalysis() {
+        int[] counts = new int[]{5, 10, 12, 15, 16, 20};
+        Random random = new Random(42);
+        Map map = new Map(300, 300);
+        ArrayList<Position> agents = generateLargeMap(map, random, 0.2);
+        generateTerrain(map, random);
+        WaypointPlanner exact = new WaypointPlanner();
+        WaypointPlanner heuristic = new WaypointPlanner(0);
+        int differentCosts = 0;
+        // The first round warms up the planners
+        for (int round = 0; round < 2; round++) {
+            for (int count : counts) {
+                ArrayList<Position> waypoints = new ArrayList<>();
+                while (waypoints.size() < count) {
+                    Position waypoint = new Position(random.nextInt(map.width), random.nextInt(map.height));
+                    if (map.getAgent(waypoint.getX(), waypoint.getY()) == 0 && !waypoints.contains(waypoint)) {
+                        waypoints.add(waypoint);
+                    }
+                }
+                for (WaypointPlanner planner : new WaypointPlanner[]{exact, heuristic}) {
+                    if (planner == exact && count > WaypointPlanner.HELD_KARP_LIMIT) {
+                        continue;
+                    }
+                    long startTime = System.nanoTime();
+                    WaypointRoute route = planner.plan(map, agents.get(0), waypoints, agents.get(4));
+                    long elapsedTime = System.nanoTime() - startTime;
+                    if (route != null) {
+                        // The legs are found again after the order, their costs must add up to the cost of the route
+                        int pathCost = 0;
+                        for (int i = 1; i < route.getPath().size(); i++) {
+                            pathCost += map.getMoveCost(route.getPath().get(i));
                         }
+                        if (pathCost != route.getCost()) {
+                            differentCosts++;
+                        }
+                    }
+                    if (round == 1) {
+                        System.out.println(count + " waypoints, " + (planner == exact ? "Held-Karp" : "2-opt") + ": "
+                                + (route == null ? "no route" : "cost " + route.getCost() + ", " + route.getPath().size() + " positions")
+                                + ", " + elapsedTime / 1000000.0 + " ms");
                     }
                 }
-                current.setParent(best);
-                current = best;
-                pathToChest.add(current);
-                // If the size of the path is large enough, then there is no solution(at least without visiting tortuga).
-                if (path.size() > 65) {
-                    break;
+            }
+        }
+        System.out.println("Paths with a cost different from the route: " + differentCosts);
+        // A waypoint walled in by rocks, both planners must find no route
+        Map walled = new Map(20, 20);
+        for (int i = -1; i <= 1; i++) {
+            for (int j = -1; j <= 1; j++) {
+                if (i != 0 || j != 0) {
+                    walled.setAgent(15 + i, 15 + j, 4);
                 }
             }
-            path.addAll(pathToChest);
         }
-
-        return path;
+        ArrayList<Position> waypoints = new ArrayList<>(List.of(new Position(5, 5), new Position(15, 15), new Position(8, 2)));
+        System.out.println("Unreachable waypoint, Held-Karp: " + (exact.plan(walled, new Position(0, 0), waypoints, null) == null ? "no route" : "route")
+                + ", 2-opt: " + (heuristic.plan(walled, new Position(0, 0), waypoints, null) == null ? "no route" : "route"));
     }
 
     /**
-     * This method is used to find the best path from the fork.
-     *
-     * @param path        The path to the fork.
-     * @param goal        The goal.
-     * @param bestResult  The best result.
-     * @param forkedPaths The list of forked paths.
+     * This method is used to evaluate many what-if variants of one large map in parallel.
+     * Every variant moves one rock, adds one rock, kills the Kraken, calms Davy Jones or turns the water around a cell into shallows, and A* is run on it.
+     * The variants are built once as overlays of the map and once as full copies of the map,
+     * it prints the time to build the variants and to search them for both, the mean number of changed cells and the number of wins.
      */
-    public void backtrackingSearchForFork(ArrayList<Position> path, Position goal, int bestResult, ArrayList<ArrayList<Position>> forkedPaths) {
-        ArrayList<Position> forks = new ArrayList<>();
-        Position current = path.get(path.size() - 1);
-        while (current != null && !current.equals(goal)) {
-            ArrayList<Position> neighbors = getMooreNeighbors(current);
-            Position best = null;
-            for (Position neighbor : neighbors) {
-
-                if (neighbor.getAgent() == -1 || neighbor.getAgent() == 2 || neighbor.getAgent() == 3 || neighbor.getAgent() == 4)
-                    continue;
-                if (best == null) {
-                    best = neighbor;
-                } else {
-                    if (Math.abs(neighbor.getX() - goal.getX()) + Math.abs(neighbor.getY() - goal.getY()) < Math.abs(best.getX() - goal.getX()) + Math.abs(best.getY() - goal.getY())) {
-                        best = neighbor;
-                    } else if (Math.abs(neighbor.getX() - goal.getX()) + Math.abs(neighbor.getY() - goal.getY()) == Math.abs(best.getX() - goal.getX()) + Math.abs(best.getY() - goal.getY())) {
-                        neighbor.setParent(current);
-                        forks.add(neighbor); // The algorithm will return to the fork and try another path
+    public static void whatIfAnalysis() {
+        int numberOfTests = 1000;
+        Random random = new Random(42);
+        Map base = new Map(200, 200);
+        ArrayList<Position> agents = generateLargeMap(base, random, 0.25);
+        long[] seeds = new long[numberOfTests];
+        for (int k = 0; k < numberOfTests; k++) {
+            seeds[k] = random.nextLong();
+        }
+        int[] expected = new int[numberOfTests];
+        int[] actual = new int[numberOfTests];
+        long[] copyTime = new long[]{Long.MAX_VALUE, Long.MAX_VALUE};
+        long[] overlayTime = new long[]{Long.MAX_VALUE, Long.MAX_VALUE};
+        long changedCells = 0;
+        // The best of several rounds is taken, so both variants are measured after the warm-up
+        for (int round = 0; round < 3; round++) {
+            long startTime = System.nanoTime();
+            ArrayList<Map> copies = new ArrayList<>();
+            for (int k = 0; k < numberOfTests; k++) {
+                Map copy = new Map(base.width, base.height);
+                for (int i = 0; i < base.height; i++) {
+                    for (int j = 0; j < base.width; j++) {
+                        copy.setCell(j, i, base.getCell(j, i));
+                        if (base.getCost(j, i) != Map.OPEN_WATER) {
+                            copy.setCost(new Position(j, i), base.getCost(j, i));
+                        }
                     }
                 }
+                copy.rock = base.rock;
+                copy.tortuga = base.tortuga;
+                applyWhatIf(copy, agents, new Random(seeds[k]), k % 5);
+                copies.add(copy);
             }
-            current.setParent(best);
-            current = best;
-            path.add(current);
-            if (path.size() > bestResult) {
-                return;
+            copyTime[0] = Math.min(copyTime[0], System.nanoTime() - startTime);
+            startTime = System.nanoTime();
+            evaluateWhatIf(copies, agents, expected);
+            copyTime[1] = Math.min(copyTime[1], System.nanoTime() - startTime);
+            copies.clear();
+
+            startTime = System.nanoTime();
+            ArrayList<Map> overlays = new ArrayList<>();
+            for (int k = 0; k < numberOfTests; k++) {
+                MapOverlay overlay = new MapOverlay(base);
+                applyWhatIf(overlay, agents, new Random(seeds[k]), k % 5);
+                overlays.add(overlay);
             }
-            forkedPaths.add(path);
-            if (path.size() > 65) {
-                break;
+            overlayTime[0] = Math.min(overlayTime[0], System.nanoTime() - startTime);
+            startTime = System.nanoTime();
+            evaluateWhatIf(overlays, agents, actual);
+            overlayTime[1] = Math.min(overlayTime[1], System.nanoTime() - startTime);
+            changedCells = 0;
+            for (Map overlay : overlays) {
+                changedCells += ((MapOverlay) overlay).getChangedCells();
+            }
+        }
+        int wins = 0;
+        int different = 0;
+        for (int k = 0; k < numberOfTests; k++) {
+            if (actual[k] >= 0) {
+                wins++;
+            }
+            if (expected[k] != actual[k]) {
+                different++;
             }
         }
+        System.out.println("Copies: built in " + copyTime[0] / 1000000.0 + " ms, searched in " + copyTime[1] / 1000000.0 + " ms");
+        System.out.println("Overlays: built in " + overlayTime[0] / 1000000.0 + " ms, searched in " + overlayTime[1] / 1000000.0 + " ms");
+        System.out.println("Mean changed cells: " + (double) changedCells / numberOfTests);
+        System.out.println("Wins: " + wins);
+        System.out.println("Different results: " + different);
+        // A gap in a wall of rocks opened in an overlay, the table heuristic of the base map would send A* around the wall
+        Map walled = new Map(20, 20);
+        for (int y = 0; y < 19; y++) {
+            walled.setAgent(15, y, 4);
+        }
+        walled.setHeuristic(new TableHeuristic(walled));
+        MapOverlay gap = new MapOverlay(walled);
+        gap.setAgent(15, 5, 0);
+        Position start = new Position(10, 5);
+        Position goal = new Position(19, 5);
+        System.out.println("Overlay with a gap in the wall: " + gap.aStar(start, goal).size() + " steps, Dijkstra "
+                + gap.aStar(start, goal, new ZeroHeuristic()).size() + " steps");
     }
 
     /**
-     * This method is used to check validity of the map.
-     * @param agents The list of agents.
-     * @return True if the map is valid, false otherwise.
+     * Applies one what-if change to the map.
+     *
+     * @param map    The map or the overlay to change.
+     * @param agents The list of agents of the base map.
+     * @param random The source of randomness.
+     * @param kind   The change: 0 - a rock is removed, 1 - a rock is added, 2 - the Kraken is killed, 3 - Davy Jones is calmed,
+     *               4 - the cells around a cell become shallows.
      */
-    public boolean checkValidity(String[] agents) {
-        ArrayList<Position> agentsParsed = new ArrayList<>();
-        for (int i=0;i<6;i++) {
-            Position temp = Position.parsePosition(agents[i]);
-            if (isPositionValid(temp.getX(), temp.getY())) {
-                temp.setAgent(i+1);
-                agentsParsed.add(temp);
-            } else {
-                return false;
+    private static void applyWhatIf(Map map, ArrayList<Position> agents, Random random, int kind) {
+        if (kind == 0 || kind == 1) {
+            int code = kind == 0 ? 4 : 0;
+            Position cell;
+            int attempts = 0;
+            do {
+                cell = new Position(random.nextInt(map.width), random.nextInt(map.height));
+            } while (map.getAgent(cell.getX(), cell.getY()) != code && ++attempts < 1000);
+            if (map.getAgent(cell.getX(), cell.getY()) == code) {
+                map.setAgent(cell.getX(), cell.getY(), 4 - code);
             }
+        } else if (kind == 4) {
+            Position center = new Position(random.nextInt(map.width), random.nextInt(map.height));
+            for (Position cell : map.getMooreNeighbors(center)) {
+                map.setCost(cell, Map.SHALLOWS);
+            }
+        } else {
+            map.removeEnemy(agents.get(kind == 2 ? 2 : 1));
         }
-        Position jack = agentsParsed.get(0);
-        Position davy = agentsParsed.get(1);
-        Position kraken = agentsParsed.get(2);
-        Position rock = agentsParsed.get(3);
-        Position chest = agentsParsed.get(4);
-        Position tortuga = agentsParsed.get(5);
+    }
 
-        if (jack.getX()!=0 && jack.getY()!=0) {
-            // Check Jack
-            return false;
-        } else if (davy.getX() == 0 && davy.getY() == 0) {
-            // Check Davy
-            return false;
-        } else if (getMooreNeighbors(kraken).contains(davy) || kraken.getX() == 0 && kraken.getY() == 0 || kraken.getX() == davy.getX() && kraken.getY() == davy.getY() ) {
-            // Check Kraken
-            return false;
-        } else if (getMooreNeighbors(rock).contains(davy) || rock.getX() == 0 && rock.getY() == 0 || rock.getX() == davy.getX() && rock.getY() == davy.getY()) {
-            // Check Rock
-            return false;
-        } else if (map[chest.getY()][chest.getX()].getAgent() == -1 || chest.getX() == 0 && chest.getY() == 0 || chest.getX() == davy.getX() && chest.getY() == davy.getY() || chest.getX() == kraken.getX() && chest.getY() == kraken.getY() || chest.getX() == rock.getX() && chest.getY() == rock.getY()) {
-            // Check Chest
-            return false;
-        } else if (map[tortuga.getY()][tortuga.getX()].getAgent() == -1 || tortuga.getX() == davy.getX() && tortuga.getY() == davy.getY() || tortuga.getX() == kraken.getX() && tortuga.getY() == kraken.getY() || tortuga.getX() == rock.getX() && tortuga.getY() == rock.getY() || tortuga.getX() == chest.getX() && tortuga.getY() == chest.getY()) {
-            // Check Tortuga
-            return false;
-        }
-        return true;
+    /**
+     * Runs A* from Jack to the chest on every map in parallel.
+     *
+     * @param maps    The maps.
+     * @param agents  The list of agents of the base map.
+     * @param lengths The lengths of the paths, -1 if there is no path.
+     */
+    private static void evaluateWhatIf(ArrayList<Map> maps, ArrayList<Position> agents, int[] lengths) {
+        IntStream.range(0, maps.size()).parallel().forEach(k -> {
+            ArrayList<Position> path = maps.get(k).aStar(agents.get(0), agents.get(4));
+            lengths[k] = path == null ? -1 : path.size() - 1;
+        });
     }
-}
 
-/**
- * The class is used to generate map and do tests.
- */
-class Test {
+    /**
+     * This method is used to compare the backtracking search with the forks explored in the calling thread and in a pool.
+     * For the map of the game and for larger maps it prints the time of both, the speedup and the number of searches where the results differ.
+     */
+    public static void forkAnalysis() {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        System.out.println("Threads: " + threads + ", cores: " + Runtime.getRuntime().availableProcessors());
+        int[] sizes = new int[]{9, 32, 64};
+        for (int size : sizes) {
+            int numberOfTests = size == 9 ? 1000 : 20;
+            Random random = new Random(42);
+            ArrayList<Map> maps = new ArrayList<>();
+            ArrayList<ArrayList<Position>> corpus = new ArrayList<>();
+            for (int k = 0; k < numberOfTests; k++) {
+                Map map = new Map(size, size);
+                corpus.add(size == 9 ? generateMap(map, random) : generateLargeMap(map, random, 0.1));
+                maps.add(map);
+            }
+            long serialTime = Long.MAX_VALUE;
+            long parallelTime = Long.MAX_VALUE;
+            int different = 0;
+            long expansions = 0;
+            // The best of several rounds is taken, so both are measured after the warm-up
+            for (int round = 0; round < 3; round++) {
+                different = 0;
+                expansions = 0;
+                long serial = 0;
+                long parallel = 0;
+                for (int k = 0; k < numberOfTests; k++) {
+                    Map map = maps.get(k);
+                    map.resetExpansions();
+                    long startTime = System.nanoTime();
+                    ArrayList<Position> expected = map.backtrackingSearch(corpus.get(k).get(0), corpus.get(k).get(4), null);
+                    serial += System.nanoTime() - startTime;
+                    expansions += map.getExpansions();
+                    startTime = System.nanoTime();
+                    ArrayList<Position> actual = map.backtrackingSearch(corpus.get(k).get(0), corpus.get(k).get(4), pool);
+                    parallel += System.nanoTime() - startTime;
+                    if (!Objects.equals(expected, actual)) {
+                        different++;
+                    }
+                }
+                serialTime = Math.min(serialTime, serial);
+                parallelTime = Math.min(parallelTime, parallel);
+            }
+            System.out.println(size + "x" + size + ": ");
+            System.out.println("Serial: " + serialTime / 1000000.0 / numberOfTests + " ms");
+            System.out.println("Parallel: " + parallelTime / 1000000.0 / numberOfTests + " ms");
+            System.out.println("Speedup: " + (double) serialTime / parallelTime);
+            System.out.println("Mean expansions: " + (double) expansions / numberOfTests);
+            System.out.println("Different results: " + different);
+        }
+        pool.shutdown();
+    }
 
     /**
-     * Generate a new random map. The map is a 9x9 grid.
-     * 0 - empty space
-     * 1 - Jack - always at 0,0
-     * 2 - Davy Jones - except inside the Tortuga and the chest, positons of the Kraken, the Rock and Jack.
-     * 3 - Kraken - except inside the Tortuga and the chest, positons of the Davy Jones and Jack.
-     * 4 - Rock - except inside the Tortuga and the chest, position of the Davy Jones and Jack.
-     * 5 - Chest - except danger zones and Jack's position.
-     * 6 - Tortuga - except danger zones and the chest.
-     * -1 - Dangerous zone
-     *
-     * @param map The map.
-     * @return agents The list of agents.
+     * This method is used to evaluate the maps with many enemies. Thousands of Davy Jones and Krakens are added to a large map one by one,
+     * then half of them are removed or killed. It prints the time of one update, the time of rebuilding the zones from scratch,
+     * whether the incremental zones match the rebuilt ones and the time of A* before and after the removals.
      */
-    public static ArrayList<Position> generateMap(Map map) {
-        Random random = new Random();
+    public static void enemyAnalysis() {
+        int numberOfEnemies = 4000;
+        Random random = new Random(42);
+        Map map = new Map(1000, 1000);
+        ArrayList<Position> agents = generateLargeMap(map, random, 0.1);
+        ArrayList<Position> enemies = new ArrayList<>();
+        ArrayList<Integer> codes = new ArrayList<>();
+        while (enemies.size() < numberOfEnemies) {
+            Position enemy = new Position(random.nextInt(map.width), random.nextInt(map.height));
+            // Jack and the chest stay out of the zones
+            if ((map.getCell(enemy.getX(), enemy.getY()) & Map.AGENT_MASK) == 0 && Math.max(Math.abs(enemy.getX() - agents.get(0).getX()), Math.abs(enemy.getY() - agents.get(0).getY())) > 1
+                    && Math.max(Math.abs(enemy.getX() - agents.get(4).getX()), Math.abs(enemy.getY() - agents.get(4).getY())) > 1) {
+                enemies.add(enemy);
+                codes.add(enemies.size() % 2 == 0 ? 2 : 3);
+                map.addEnemy(codes.get(codes.size() - 1), enemy);
+            }
+        }
+        long startTime = System.nanoTime();
+        ArrayList<Position> path = map.aStar(agents.get(0), agents.get(4));
+        System.out.println("A* with " + numberOfEnemies + " enemies: " + (path == null ? "no path" : path.size() + " positions") + ", " + (System.nanoTime() - startTime) / 1000000.0 + " ms");
 
+        // Every second enemy is removed, the Krakens are killed in an overlay of the map first
+        MapOverlay killed = new MapOverlay(map);
+        for (int k = 0; k < numberOfEnemies; k += 2) {
+            if (codes.get(k) == 3) {
+                killed.removeEnemy(enemies.get(k));
+            }
+        }
+        startTime = System.nanoTime();
+        for (int k = 0; k < numberOfEnemies; k += 2) {
+            map.removeEnemy(enemies.get(k));
+        }
+        long updateTime = System.nanoTime() - startTime;
+        startTime = System.nanoTime();
+        Map rebuilt = new Map(map.width, map.height);
+        for (int i = 0; i < map.height; i++) {
+            for (int j = 0; j < map.width; j++) {
+                int agent = map.getCell(j, i) & Map.AGENT_MASK;
+                if (agent == 2 || agent == 3) {
+                    rebuilt.addEnemy(agent, new Position(j, i));
+                } else {
+                    rebuilt.setAgent(j, i, agent);
+                }
+            }
+        }
+        long rebuildTime = System.nanoTime() - startTime;
+        boolean matches = true;
+        boolean killedMatches = true;
+        int maxDanger = 0;
+        for (int i = 0; i < map.height; i++) {
+            for (int j = 0; j < map.width; j++) {
+                matches &= map.getCell(j, i) == rebuilt.getCell(j, i);
+                maxDanger = Math.max(maxDanger, killed.getDanger(j, i));
+                // Only a part of the enemies was removed from the overlay, so none of its zones may be smaller
+                killedMatches &= killed.getDanger(j, i) >= map.getDanger(j, i);
+            }
+        }
+        System.out.println("Update: " + updateTime / 1000.0 / (numberOfEnemies / 2) + " us per enemy, rebuild: " + rebuildTime / 1000000.0 + " ms");
+        System.out.println("Incremental zones match the rebuilt ones: " + matches);
+        System.out.println("Overlay keeps the zones of the remaining enemies: " + killedMatches);
+        System.out.println("Most zones on one cell: " + maxDanger + ", a cell of a mapped map holds up to " + (0xFF >>> Map.AGENT_BITS));
+        startTime = System.nanoTime();
+        path = map.aStar(agents.get(0), agents.get(4));
+        System.out.println("A* with " + numberOfEnemies / 2 + " enemies: " + (path == null ? "no path" : path.size() + " positions") + ", " + (System.nanoTime() - startTime) / 1000000.0 + " ms");
+    }
 
-        Position jack = new Position(0, 0);
-        map.addAgent(1, jack);
-        Position davy;
-        Position kraken;
-        Position rock;
-        Position chest;
-        Position tortuga;
-        ArrayList<Position> agents = new ArrayList<>();
-        do {
-            davy = new Position(random.nextInt(9), random.nextInt(9));
-        } while (davy.getX() == 0 && davy.getY() == 0);
-        map.addAgent(2, davy);
-        do {
-            kraken = new Position(random.nextInt(9), random.nextInt(9));
-        } while (map.getMooreNeighbors(kraken).contains(davy) || kraken.getX() == 0 && kraken.getY() == 0 || kraken.getX() == davy.getX() && kraken.getY() == davy.getY());
-        map.addAgent(3, kraken);
-        do {
-            rock = new Position(random.nextInt(9), random.nextInt(9));
-        } while (map.getMooreNeighbors(rock).contains(davy) || rock.getX() == 0 && rock.getY() == 0 || rock.getX() == davy.getX() && rock.getY() == davy.getY());
-        map.addRock(rock);
-        do {
-            chest = new Position(random.nextInt(9), random.nextInt(9));
-        } while (map.map[chest.getY()][chest.getX()].getAgent() == -1 || chest.getX() == 0 && chest.getY() == 0 || chest.getX() == davy.getX() && chest.getY() == davy.getY() || chest.getX() == kraken.getX() && chest.getY() == kraken.getY() || chest.getX() == rock.getX() && chest.getY() == rock.getY());
-        map.addAgent(5, chest);
-        do {
-            tortuga = new Position(random.nextInt(9), random.nextInt(9));
-        } while (map.map[tortuga.getY()][tortuga.getX()].getAgent() == -1 || tortuga.getX() == davy.getX() && tortuga.getY() == davy.getY() || tortuga.getX() == kraken.getX() && tortuga.getY() == kraken.getY() || tortuga.getX() == rock.getX() && tortuga.getY() == rock.getY() || tortuga.getX() == chest.getX() && tortuga.getY() == chest.getY());
-        map.addTortuga(tortuga);
-        agents.add(jack);
-        agents.add(davy);
-        agents.add(kraken);
-        agents.add(rock);
-        agents.add(chest);
-        agents.add(tortuga);
-        return agents;
+    /**
+     * This method is used to evaluate the result archive. Every scenario is solved by A* and by the backtracking search,
+     * the results are appended to the archive in the order of the codes of the scenarios, as a sweep writes them, and read back.
+     * It prints the size of a record, the time of the appends compared to the time of the searches, the number of results
+     * whose scenario or route were not read back as they were written, and how many records are read from the archive cut in the last record
+     * and from the same archive after two more records were appended to it.
+     */
+    public static void archiveAnalysis() {
+        int numberOfTests = 100000;
+        Random random = new Random(42);
+        try {
+            File file = File.createTempFile("results", ".bin");
+            file.deleteOnExit();
+            TreeMap<Long, ArrayList<Position>> sweep = new TreeMap<>();
+            while (sweep.size() < numberOfTests) {
+                ArrayList<Position> agents = generateMap(new Map(), random);
+                sweep.put(ResultArchive.scenarioCode(agents), agents);
+            }
+            ArrayList<Long> scenarios = new ArrayList<>();
+            ArrayList<ArrayList<Position>> paths = new ArrayList<>();
+            long searchTime = 0;
+            long appendTime = 0;
+            try (ResultArchive archive = new ResultArchive(file.getPath())) {
+                for (long scenario : sweep.keySet()) {
+                    Map map = new Map();
+                    map.addAgents(sweep.get(scenario));
+                    for (PathFinder finder : new PathFinder[]{PathFinderRegistry.get("AStar"), PathFinderRegistry.get("Backtracking")}) {
+                        SearchResult result = map.solve(finder);
+                        searchTime += result.getElapsedTime();
+                        long startTime = System.nanoTime();
+                        archive.append(scenario, result);
+                        appendTime += System.nanoTime() - startTime;
+                        scenarios.add(scenario);
+                        paths.add(result.getPath());
+                    }
+                }
+                long startTime = System.nanoTime();
+                archive.flush();
+                appendTime += System.nanoTime() - startTime;
+            }
+            int different = 0;
+            int records = 0;
+            long startTime = System.nanoTime();
+            try (ResultArchiveReader reader = new ResultArchiveReader(file.getPath())) {
+                ArchivedResult result;
+                while ((result = reader.next()) != null) {
+                    if (records >= paths.size() || result.getScenario() != scenarios.get(records) || !Objects.equals(result.getPath(), paths.get(records))) {
+                        different++;
+                    }
+                    records++;
+                }
+            }
+            long readTime = System.nanoTime() - startTime;
+            // The writer crashed in the middle of the last record
+            File truncatedFile = File.createTempFile("truncated", ".bin");
+            truncatedFile.deleteOnExit();
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(truncatedFile.toPath(), StandardOpenOption.WRITE)) {
+                source.transferTo(0, file.length() - 1, target);
+            }
+            int truncatedRecords = 0;
+            boolean truncated;
+            try (ResultArchiveReader reader = new ResultArchiveReader(truncatedFile.getPath())) {
+                while (reader.next() != null) {
+                    truncatedRecords++;
+                }
+                truncated = reader.isTruncated();
+            }
+            // The next session appends both results of the last scenario again, the partial record is cut off first
+            long last = scenarios.get(scenarios.size() - 1);
+            try (ResultArchive archive = new ResultArchive(truncatedFile.getPath())) {
+                Map map = new Map();
+                map.addAgents(sweep.get(last));
+                for (PathFinder finder : new PathFinder[]{PathFinderRegistry.get("AStar"), PathFinderRegistry.get("Backtracking")}) {
+                    archive.append(last, map.solve(finder));
+                }
+            }
+            int appendedRecords = 0;
+            int appendedDifferent = 0;
+            try (ResultArchiveReader reader = new ResultArchiveReader(truncatedFile.getPath())) {
+                ArchivedResult result;
+                while ((result = reader.next()) != null) {
+                    int expected = appendedRecords < truncatedRecords ? appendedRecords : paths.size() - 2 + appendedRecords - truncatedRecords;
+                    if (expected >= paths.size() || result.getScenario() != scenarios.get(expected) || !Objects.equals(result.getPath(), paths.get(expected))) {
+                        appendedDifferent++;
+                    }
+                    appendedRecords++;
+                }
+                appendedDifferent += reader.isTruncated() ? 1 : 0;
+            }
+            System.out.println("Records: " + records + ", " + (double) file.length() / records + " bytes per record");
+            System.out.println("Search time: " + searchTime / 1000000.0 + " ms, append time: " + appendTime / 1000000.0 + " ms");
+            System.out.println("Read time: " + readTime / 1000000.0 + " ms");
+            System.out.println("Different results: " + (different + Math.abs(paths.size() - records)));
+            System.out.println("A billion records: " + String.format("%.2f", file.length() * 1e9 / records / (1L << 30)) + " GiB");
+            System.out.println("Cut in the last record: " + truncatedRecords + " records read, truncated: " + truncated);
+            System.out.println("Appended after the cut: " + appendedRecords + " records read, different: " + appendedDifferent);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -747,26 +5688,22 @@ class Test {
         int[] numberOfLoses = new int[]{0, 0};
         ArrayList<Double> resultsAStar = new ArrayList<>();
         ArrayList<Double> resultsBacktrack = new ArrayList<>();
+        int skippedSearches = 0;
+        // The snapshot printed at the end covers this analysis only
+        SolverMetrics.reset();
+        AnalysisBatchEvent event = new AnalysisBatchEvent();
+        event.begin();
         for (int k = 0; k < numberOfTests; k++) {
             Map map = new Map();
             ArrayList<Position> agents = generateMap(map);
-            if (map.map[0][0].getAgent() == -1) {
+            if (map.getAgent(0, 0) == -1) {
                 // Dangerous zone at the Jack's Position == lose
                 numberOfLoses[0]++;
                 numberOfLoses[1]++;
             } else {
                 map.aStarInit();
-                for (int i = 0; i < 6; i++) {
-                    if (i == 3) {
-                        map.addRock(agents.get(i));
-                    } else if (i == 5) {
-                        map.addTortuga(agents.get(i));
-                    } else {
-                        map.addAgent(i + 1, agents.get(i));
-                    }
-                }
-
                 map.backtrackInit();
+                skippedSearches += map.getSkippedSearches();
                 ArrayList<String> resultsA = readResultsFromFile("outputAStar.txt");
                 ArrayList<String> resultsB = readResultsFromFile("outputBacktracking.txt");
                 if (resultsA.get(0).equals("Win")) {
@@ -783,6 +5720,13 @@ class Test {
                 }
             }
         }
+        if (event.shouldCommit()) {
+            event.maps = numberOfTests;
+            event.aStarWins = numberOfWins[0];
+            event.backtrackingWins = numberOfWins[1];
+            event.skippedSearches = skippedSearches;
+            event.commit();
+        }
         double meanAStar = resultsAStar.stream().mapToDouble(a -> a).average().orElse(0.0);
         double meanBacktrack = resultsBacktrack.stream().mapToDouble(a -> a).average().orElse(0.0);
         Double modeAStar = mode(resultsAStar);
@@ -805,7 +5749,143 @@ class Test {
         System.out.println("Standard Deviation: " + standardDeviationBacktrack);
         System.out.println("Number of wins: " + numberOfWins[1]);
         System.out.println("Number of loses: " + numberOfLoses[1]);
+        System.out.println("Skipped searches: " + skippedSearches);
+        if (SolverMetrics.ENABLED) {
+            System.out.print(SolverMetrics.snapshot());
+        }
+
+    }
+
+    /**
+     * This method is used to compare the heuristics of A* on the same set of maps.
+     * For each heuristic it prints the number of wins, the mean number of expanded positions, the mean path length, the mean execution time
+     * and the number of paths longer than the ones of the Dijkstra algorithm.
+     */
+    public static void compareHeuristics() {
+        int numberOfTests = 1000;
+        ArrayList<ArrayList<Position>> corpus = new ArrayList<>();
+        Random random = new Random(42);
+        for (int k = 0; k < numberOfTests; k++) {
+            corpus.add(generateMap(new Map(), random));
+        }
+        int[] shortest = new int[numberOfTests];
+        for (int k = 0; k < numberOfTests; k++) {
+            Map map = new Map();
+            map.addAgents(corpus.get(k));
+            ArrayList<Position> solution = map.aStarRoute(corpus.get(k).get(0), corpus.get(k).get(4), new ZeroHeuristic());
+            shortest[k] = solution == null ? -1 : solution.size() - 1;
+        }
+        String[] names = new String[]{"Manhattan", "Chebyshev", "Octile", "Zero", "Table", "ALT"};
+        for (String name : names) {
+            int searches = 0;
+            int wins = 0;
+            long expansions = 0;
+            long pathLength = 0;
+            long elapsedTime = 0;
+            int longerPaths = 0;
+            for (int k = 0; k < numberOfTests; k++) {
+                ArrayList<Position> agents = corpus.get(k);
+                Map map = new Map();
+                map.addAgents(agents);
+                if (map.getAgent(0, 0) == -1) {
+                    continue;
+                }
+                Heuristic heuristic;
+                if (name.equals("Manhattan")) {
+                    heuristic = (x, y, goalX, goalY) -> Math.abs(x - goalX) + Math.abs(y - goalY);
+                } else if (name.equals("Chebyshev")) {
+                    heuristic = new ChebyshevHeuristic();
+                } else if (name.equals("Octile")) {
+                    heuristic = new OctileHeuristic();
+                } else if (name.equals("Zero")) {
+                    heuristic = new ZeroHeuristic();
+                } else if (name.equals("Table")) {
+                    heuristic = new TableHeuristic(map);
+                } else {
+                    heuristic = new LandmarkHeuristic(map, 4, new Random(k));
+                }
+                long startTime = System.nanoTime();
+                ArrayList<Position> solution = map.aStarRoute(agents.get(0), agents.get(4), heuristic);
+                elapsedTime += System.nanoTime() - startTime;
+                searches++;
+                expansions += map.getExpansions();
+                if (solution != null) {
+                    wins++;
+                    pathLength += solution.size() - 1;
+                    if (solution.size() - 1 > shortest[k]) {
+                        longerPaths++;
+                    }
+                }
+            }
+            System.out.println(name + ": ");
+            System.out.println("Number of wins: " + wins);
+            System.out.println("Mean expansions: " + (double) expansions / searches);
+            System.out.println("Mean path length: " + (wins == 0 ? 0.0 : (double) pathLength / wins));
+            System.out.println("Mean time: " + elapsedTime / 1000000.0 / searches + " ms");
+            System.out.println("Paths longer than Dijkstra: " + longerPaths);
+        }
+    }
 
+    /**
+     * This method is used to evaluate the adaptive engine. It is calibrated on one set of maps and compared with
+     * the fixed engines on another one, also by the number of routes whose length differs from the one A* finds.
+     * Every routing decision is written to routingDecisions.txt.
+     */
+    public static void adaptiveAnalysis() {
+        int numberOfTests = 1000;
+        Random random = new Random(42);
+        ArrayList<ArrayList<Position>> calibration = new ArrayList<>();
+        for (int k = 0; k < 200; k++) {
+            calibration.add(generateMap(new Map(), random));
+        }
+        ArrayList<ArrayList<Position>> corpus = new ArrayList<>();
+        for (int k = 0; k < numberOfTests; k++) {
+            corpus.add(generateMap(new Map(), random));
+        }
+        AdaptivePathFinder adaptive = (AdaptivePathFinder) PathFinderRegistry.get("Adaptive");
+        adaptive.calibrate(calibration);
+        adaptive.drainDecisions();
+        // The lengths of the routes of A*, the other engines are compared with them
+        int[] shortest = new int[numberOfTests];
+        for (PathFinder finder : PathFinderRegistry.getAll()) {
+            int wins = 0;
+            int different = 0;
+            long elapsedTime = 0;
+            for (int k = 0; k < numberOfTests; k++) {
+                Map map = new Map();
+                map.addAgents(corpus.get(k));
+                if (map.getAgent(0, 0) == -1) {
+                    continue;
+                }
+                SearchResult result = map.solve(finder);
+                elapsedTime += result.getElapsedTime();
+                if (result.isWin()) {
+                    wins++;
+                }
+                int length = result.isWin() ? result.getPath().size() - 1 : -1;
+                if (finder.getName().equals("AStar")) {
+                    shortest[k] = length;
+                } else if (length != shortest[k]) {
+                    different++;
+                }
+            }
+            System.out.println(finder.getName() + ": ");
+            System.out.println("Number of wins: " + wins);
+            System.out.println("Total time: " + elapsedTime / 1000000.0 + " ms");
+            System.out.println("Routes of another length than AStar: " + different);
+        }
+        HashMap<String, Integer> routed = new HashMap<>();
+        try {
+            FileWriter writer = new FileWriter("routingDecisions.txt");
+            for (RoutingDecision decision : adaptive.drainDecisions()) {
+                routed.merge(decision.getEngine(), 1, Integer::sum);
+                writer.write(decision + "\n");
+            }
+            writer.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        System.out.println("Routed: " + routed);
     }
 
     /**
@@ -892,13 +5972,12 @@ class Test {
 public class Main {
     public static void main(String[] args) {
         Scanner reader = new Scanner(System.in);
-        System.out.println("How do you want to input the map? (1 - from file, 2 - generate a map, 3 - do 1000 tests and provide analysis)");
+        System.out.println("How do you want to input the map? (1 - from file, 2 - generate a map, 3 - do 1000 tests and provide analysis, 4 - compare heuristics of A*, 5 - compare the adaptive engine, 6 - anytime planning on large maps, 7 - compare the batch solver, 8 - compare open lists on weighted terrain, 9 - evaluate what-if variants of a large map, 10 - plan routes through several waypoints, 11 - compare the map in a mapped file, 12 - compare the landmark heuristic, 13 - archive the results in a binary file, 14 - maintain the zones of many enemies, 15 - compare the serial and parallel backtracking)");
         int input = reader.nextInt();
         Map map = new Map();
         String[] agents = new String[6];
         int variant; // It was supposed to be used for the second variant of the task, but I didn't have time to implement it, and also I am not sure whether it will change the results.
         // I think that it could improve performance(Jack will not go to dead ends, but go to the goal by different way avoiding dead ends).
-        ArrayList<Position> agentsParsed = new ArrayList<>();
         if (input == 1) {
             File inputFile = new File("input.txt");
 
@@ -935,43 +6014,53 @@ public class Main {
             } catch (Exception e) {
                 throw new RuntimeException("Invalid input");
             }
-            agentsParsed = Test.generateMap(map);
+            Test.generateMap(map);
         } else if (input == 3) {
             Test.analysis();
             return;
+        } else if (input == 4) {
+            Test.compareHeuristics();
+            return;
+        } else if (input == 5) {
+            Test.adaptiveAnalysis();
+            return;
+        } else if (input == 6) {
+            Test.anytimeAnalysis();
+            return;
+        } else if (input == 7) {
+            Test.batchAnalysis();
+            return;
+        } else if (input == 8) {
+            Test.terrainAnalysis();
+            return;
+        } else if (input == 9) {
+            Test.whatIfAnalysis();
+            return;
+        } else if (input == 10) {
+            Test.waypointAnalysis();
+            return;
+        } else if (input == 11) {
+            Test.mappedAnalysis();
+            return;
+        } else if (input == 12) {
+            Test.landmarkAnalysis();
+            return;
+        } else if (input == 13) {
+            Test.archiveAnalysis();
+            return;
+        } else if (input == 14) {
+            Test.enemyAnalysis();
+            return;
+        } else if (input == 15) {
+            Test.forkAnalysis();
+            return;
         } else {
             throw new RuntimeException("Invalid input");
         }
         reader.close();
 
         map.aStarInit();
-        // After A* is applied to the map, the map is changed, so we need to restore it to its original state.
-        if (input == 1) {
-            for (int i = 0; i < 6; i++) {
-                Position temp = Position.parsePosition(agents[i]);
-                if (i == 3) {
-                    map.addRock(temp);
-                } else if (i == 5) {
-                    map.addTortuga(temp);
-                } else {
-                    map.addAgent(i + 1, temp);
-                }
-            }
-            map.backtrackInit();
-        } else {
-            for (int i = 0; i < 6; i++) {
-                {
-                    if (i == 3) {
-                        map.addRock(agentsParsed.get(i));
-                    } else if (i == 5) {
-                        map.addTortuga(agentsParsed.get(i));
-                    } else {
-                        map.addAgent(i + 1, agentsParsed.get(i));
-                    }
-                }
-            }
-            map.backtrackInit();
-
-        }
+        // The searches do not change the map, the Kraken is killed in an overlay
+        map.backtrackInit();
     }
 }
\ No newline at end of file